@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.*;
+
+/**
+ * AccessLog records one line per request, in more or less 'CLF' aka Apache format,
+ * followed by the route, latency and cache outcome. Request threads only fill in a
+ * fixed-size record in a ring buffer - no formatting, no I/O, and the same cost
+ * whatever the size of the response - and a single background thread formats
+ * and logs the records. Producers claim slots by compare-and-set, never blocking:
+ * if the logger falls a full ring behind, records are dropped (and counted).
+ *
+ * @author richardrodgers
+ */
+public class AccessLog {
+
+    private static final Logger accessLogger = LoggerFactory.getLogger("edu.mit.lib.backrest.access");
+    private static final DateTimeFormatter clFmt =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z").withZone(ZoneId.systemDefault());
+    private static final int CAPACITY = 8192; // a power of 2
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    private static final Record[] ring = new Record[CAPACITY];
+    // next slot to claim, and next to drain
+    private static final AtomicLong head = new AtomicLong();
+    private static volatile long tail = 0L;
+    private static Meter dropped;
+    private static Meter failed;
+    // formatted once per second, by the drainer only
+    private static long stampSecond = -1L;
+    private static String stamp;
+
+    static void start(MetricRegistry metrics) {
+        dropped = metrics.meter(name(AccessLog.class, "dropped"));
+        // lines lost to appender failures
+        failed = metrics.meter(name(AccessLog.class, "failed"));
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Record();
+        }
+        Thread drainer = new Thread(AccessLog::drain, "backrest-access-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    static void log(String ip, String method, String path, String protocol, String route,
+                    int status, long bytes, long latencyNanos, String cache) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= CAPACITY) {
+                dropped.mark();
+                return;
+            }
+        } while (! head.compareAndSet(seq, seq + 1));
+        Record rec = ring[(int)(seq & MASK)];
+        rec.time = System.currentTimeMillis();
+        rec.ip = ip;
+        rec.method = method;
+        rec.path = path;
+        rec.protocol = protocol;
+        rec.route = route;
+        rec.status = status;
+        rec.bytes = bytes;
+        rec.latencyNanos = latencyNanos;
+        rec.cache = cache;
+        // publish - the drainer reads no field until it sees this
+        rec.published = seq;
+    }
+
+    private static void drain() {
+        long next = tail;
+        StringBuilder sb = new StringBuilder(256);
+        while (true) {
+            Record rec = ring[(int)(next & MASK)];
+            if (rec.published != next) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            sb.setLength(0);
+            sb.append(rec.ip).append(" - - [").append(stamp(rec.time)).append("] \"")
+              .append(rec.method).append(' ').append(rec.path).append(' ').append(rec.protocol).append("\" ")
+              .append(rec.status).append(' ').append(rec.bytes).append(' ')
+              .append(rec.route).append(' ').append(rec.latencyNanos / 1000000L).append("ms ").append(rec.cache);
+            // release the slot before the (possibly slow) logging
+            tail = ++next;
+            try {
+                accessLogger.info(sb.toString());
+            } catch (Exception e) {
+                // an appender failure must not stop the drainer - but is counted
+                failed.mark();
+            }
+        }
+    }
+
+    private static String stamp(long millis) {
+        long second = millis / 1000L;
+        if (second != stampSecond) {
+            stamp = clFmt.format(Instant.ofEpochMilli(millis));
+            stampSecond = second;
+        }
+        return stamp;
+    }
+
+    private static class Record {
+        volatile long published = -1L;
+        long time;
+        String ip;
+        String method;
+        String path;
+        String protocol;
+        String route;
+        int status;
+        long bytes;
+        long latencyNanos;
+        String cache;
+    }
+}
@@ -4,36 +4,46 @@
  */
 package edu.mit.lib.backrest;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
-import java.time.format.DateTimeFormatter;
-import java.time.ZonedDateTime;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import javax.xml.bind.JAXBException;
 import javax.xml.bind.annotation.XmlRootElement;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.transform.stream.StreamSource;
 
 import javax.servlet.ServletOutputStream;
 
 import spark.Request;
 import spark.Response;
+import spark.Route;
+import spark.Spark;
 import static spark.route.RouteOverview.*;
 import spark.QueryParamsMap;
 import static spark.Spark.*;
@@ -44,6 +54,7 @@ import org.skife.jdbi.v2.Handle;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import static com.google.common.base.Strings.*;
 
 import org.slf4j.Logger;
@@ -52,13 +63,13 @@ import org.slf4j.LoggerFactory;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
-import com.codahale.metrics.json.MetricsModule;
-import com.codahale.metrics.jdbi.InstrumentedTimingCollector;
 import static com.codahale.metrics.MetricRegistry.*;
 
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
 import io.honeybadger.reporter.HoneybadgerReporter;
 import io.honeybadger.reporter.NoticeReporter;
@@ -76,19 +87,28 @@ import static edu.mit.lib.backrest.Cache.*;
 public class Backrest {
 
     private static NoticeReporter reporter;
-    private static final MetricRegistry metrics = new MetricRegistry();
+    static final MetricRegistry metrics = new MetricRegistry();
     private static final Meter svcReqs = metrics.meter(name(Backrest.class, "service", "requests"));
     private static final Timer respTime = metrics.timer(name(Backrest.class, "service", "responseTime"));
+    private static final Timer jsonTime = metrics.timer(name(Backrest.class, "serialize", "json"));
+    private static final Timer xmlTime = metrics.timer(name(Backrest.class, "serialize", "xml"));
     private static final Map<String, String> tokenMap = new ConcurrentHashMap<>();
+    // most values (or ids) a single lookup (or multi-get) may resolve
+    private static final int MAX_LOOKUP_VALUES = 1000;
+    // as written by JAXB
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+    // runs periodic refreshes of in-memory DB data
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+                         new ThreadFactoryBuilder().setDaemon(true).setNameFormat("backrest-refresh-%d").build());
     static final Logger logger = LoggerFactory.getLogger(Backrest.class);
-    static final DateTimeFormatter clFmt = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z");
     static String assetLocator;
     static int version;
 
     public static void main(String[] args) throws Exception {
 
         Properties props = findConfig(args);
-        DBI dbi = new DBI(props.getProperty("dburl"), props);
+        HikariDataSource dataSource = pooledSource(props);
+        DBI dbi = new DBI(dataSource);
         // worry about supported versions if not in test-mode
         if (! props.getProperty("dburl").contains("h2")) {
             try (Handle hdl = dbi.open()) {
@@ -104,10 +124,26 @@ public class Backrest {
             version = 30;  // test DB version
         }
         assetLocator = props.getProperty("assets");
-        // Advanced instrumentation/metrics if requested
-        if (System.getenv("BACKREST_DB_METRICS") != null) {
-            dbi.setTimingCollector(new InstrumentedTimingCollector(metrics));
+        // load reference data held in memory
+        FieldRegistry.load(dbi);
+        HandleIndex.load(dbi);
+        Hierarchy.load(dbi);
+        // evict cached data (and re-index) as DSpace content changes
+        String indexFields = System.getenv("BACKREST_MAMA_INDEX");
+        boolean polling = System.getenv("BACKREST_POLL") != null || ! isNullOrEmpty(indexFields);
+        if (polling) {
+            // changes made while the index loads are caught by the first poll
+            ChangePoller.mark(dbi);
+        }
+        // index field values for metadata lookups if requested
+        if (! isNullOrEmpty(indexFields)) {
+            MetadataIndex.load(dbi, indexFields);
+        }
+        if (polling) {
+            ChangePoller.start(dbi, millisFromEnv("BACKREST_POLL", "1m"));
         }
+        // DB time per request, and advanced (per statement) instrumentation/metrics if requested
+        dbi.setTimingCollector(new Timing(metrics, System.getenv("BACKREST_DB_METRICS") != null));
         // bind to specifc IP address (default is all addresses 0.0.0.0)
         if (System.getenv("BACKREST_SVC_HOST") != null) {
             ipAddress(System.getenv("BACKREST_SVC_HOST"));
@@ -123,17 +159,29 @@ public class Backrest {
         // If redis service available, use it for caching, else local
         boolean doCaching = System.getenv("BACKREST_CACHE") != null;
         if (doCaching && System.getenv("BACKREST_REDIS_HOST") != null) {
-            setCache("redis");
+            setCache("redis", System.getenv("BACKREST_CACHE"), metrics);
         } else if (doCaching) {
-            setCache("local");
+            setCache("local", System.getenv("BACKREST_CACHE"), metrics);
+        }
+
+        // warm the cache before reporting readiness
+        boolean warmup = cacheActive() && System.getenv("BACKREST_WARMUP") != null;
+        if (warmup) {
+            String host = System.getenv("BACKREST_SVC_HOST");
+            Warmup.configure(isNullOrEmpty(host) ? "localhost" : host, intFromEnv("BACKREST_SVC_PORT", 4567));
         }
 
+        AccessLog.start(metrics);
+
         before((req, res) -> {
             // Instrument all the things!
             res.header("Access-Control-Allow-Origin","*");
             svcReqs.mark();
             req.attribute("timerCtx", respTime.time());
+            Timing.start(req);
+            long cacheStart = System.nanoTime();
             getIfCachable(req);
+            Timing.cacheTime(req, System.nanoTime() - cacheStart);
         });
 
         options("/*", (req, res) -> {
@@ -154,15 +202,18 @@ public class Backrest {
         get("/ping", (req, res) -> {
             res.type("text/plain");
             res.header("Cache-Control", "must-revalidate,no-cache,no-store");
+            if (! Warmup.ready()) {
+                res.status(503);
+                return "warming up";
+            }
             return "pong";
         });
 
         get("/metrics", (req, res) -> {
             res.type("application/json");
             res.header("Cache-Control", "must-revalidate,no-cache,no-store");
-            ObjectMapper objectMapper = new ObjectMapper().registerModule(new MetricsModule(TimeUnit.SECONDS, TimeUnit.MILLISECONDS, true));
             try (ServletOutputStream outputStream = res.raw().getOutputStream()) {
-                objectMapper.writer().withDefaultPrettyPrinter().writeValue(outputStream, metrics);
+                Serializer.metricsToJson(metrics, outputStream, pretty(req));
             }
             return "";
         });
@@ -183,6 +234,7 @@ public class Backrest {
                 if (auth) {
                     shutdownCache();
                     stop();
+                    dataSource.close();
                 }
             }
         });
@@ -198,7 +250,7 @@ public class Backrest {
 
         post("/cache", (req, res) -> {
             if (cacheActive()) {
-                cacheControl(req.queryParams("command"));
+                cacheControl(req.queryParams("command"), req.queryParams("type"), req.queryParams("id"));
                 res.status(202);
                 return "Cache command received";
             } else {
@@ -278,9 +330,14 @@ public class Backrest {
                     res.status(404);
                     return "No such handle: " + handle;
                 } else {
+                    if (notModified(req, res, validator(hdl, dso, req))) return "";
                     switch (dso.type) {
                         case "community": dso = Community.findById(hdl, dso.id, req.queryMap()); break;
-                        case "collection": dso = Collection.findById(hdl, dso.id, req.queryMap()); break;
+                        case "collection":
+                            Collection coll = Collection.findById(hdl, dso.id, req.queryMap());
+                            if (itemsExpanded(req) && notModified(req, res, Collection.validator(hdl, coll.id).andPage(coll.items))) return "";
+                            dso = coll;
+                            break;
                         case "item": dso = Item.findById(hdl, dso.id, req.queryMap()); break;
                         default: break;
                     }
@@ -295,8 +352,7 @@ public class Backrest {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
                 List<Community> comms = Community.findAll(hdl, false, req.queryMap());
-                return acceptXml(req) ? dataToXml(res, new Community.XList(comms)) :
-                                        dataToJson(res, comms);
+                return listToMedia(req, res, comms, Community.XList::new);
             } catch (Exception e) {
                 return internalError(e, res);
             }
@@ -306,8 +362,7 @@ public class Backrest {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
                 List<Community> comms = Community.findAll(hdl, true, req.queryMap());
-                return acceptXml(req) ? dataToXml(res, new Community.XList(comms)) :
-                                        dataToJson(res, comms);
+                return listToMedia(req, res, comms, Community.XList::new);
             } catch (Exception e) {
                 return internalError(e, res);
             }
@@ -316,6 +371,7 @@ public class Backrest {
         get("/communities/:communityId", (req, res) -> {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
+                if (notModified(req, res, Community.validator(hdl, Integer.valueOf(req.params(":communityId"))))) return "";
                 Community comm = Community.findById(hdl, Integer.valueOf(req.params(":communityId")), req.queryMap());
                 if (comm == null) {
                     res.status(404);
@@ -331,14 +387,15 @@ public class Backrest {
         get("/communities/:communityId/collections", (req, res) -> {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
+                if (notModified(req, res, Community.collectionsValidator(hdl, Integer.valueOf(req.params(":communityId"))))) return "";
                 Community comm = Community.findById(hdl, Integer.valueOf(req.params(":communityId")), null);
                 if (comm == null) {
                     res.status(404);
                     return "No such community: " + req.params(":communityId");
                 } else {
                     List<Collection> colls = Collection.findByComm(hdl, comm.id, req.queryMap());
-                    return acceptXml(req) ? dataToXml(res, new Collection.XList(colls)) :
-                                            dataToJson(res, colls);
+                    tag(req, comm);
+                    return listToMedia(req, res, colls, Collection.XList::new);
                 }
             } catch (Exception e) {
                 return internalError(e, res);
@@ -348,14 +405,15 @@ public class Backrest {
         get("/communities/:communityId/communities", (req, res) -> {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
+                if (notModified(req, res, Community.subCommunitiesValidator(hdl, Integer.valueOf(req.params(":communityId"))))) return "";
                 Community comm = Community.findById(hdl, Integer.valueOf(req.params(":communityId")), null);
                 if (comm == null) {
                     res.status(404);
                     return "No such community: " + req.params(":communityId");
                 } else {
                     List<Community> comms = Community.findSubs(hdl, comm.id, req.queryMap());
-                    return acceptXml(req) ? dataToXml(res, new Community.XList(comms)) :
-                                            dataToJson(res, comms);
+                    tag(req, comm);
+                    return listToMedia(req, res, comms, Community.XList::new);
                 }
             } catch (Exception e) {
                 return internalError(e, res);
@@ -363,11 +421,13 @@ public class Backrest {
         });
 
         get("/collections", (req, res) -> {
+            if (req.queryParams("ids") != null) {
+                return membersToMedia(req, res, dbi, idsFromParam(req), "/collections/", "collections", (hdl, ids) -> Collection.findByIds(hdl, ids, req.queryMap()));
+            }
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
                 List<Collection> colls = Collection.findAll(hdl, req.queryMap());
-                return acceptXml(req) ? dataToXml(res, new Collection.XList(colls)) :
-                                        dataToJson(res, colls);
+                return listToMedia(req, res, colls, Collection.XList::new);
             } catch (Exception e) {
                 return internalError(e, res);
             }
@@ -376,11 +436,15 @@ public class Backrest {
         get("/collections/:collectionId", (req, res) -> {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
+                // expanded items can only be validated once read
+                if (! itemsExpanded(req) &&
+                    notModified(req, res, Collection.validator(hdl, Integer.valueOf(req.params(":collectionId"))))) return "";
                 Collection coll = Collection.findById(hdl, Integer.valueOf(req.params(":collectionId")), req.queryMap());
                 if (coll == null) {
                     res.status(404);
                     return "No such collection: " + req.params(":collectionId");
                 } else {
+                    if (itemsExpanded(req) && notModified(req, res, Collection.validator(hdl, coll.id).andPage(coll.items))) return "";
                     return dataToMedia(req, res, coll);
                 }
             } catch (Exception e) {
@@ -399,20 +463,56 @@ public class Backrest {
                     QueryParamsMap params = req.queryMap();
                     List<Item> items = Item.findByColl(hdl, coll.id, params,
                                             limitFromParam(params), offsetFromParam(params));
-                    return acceptXml(req) ? dataToXml(res, new Item.XList(items)) :
-                                            dataToJson(res, items);
+                    // validated by the page's own rows, not a scan of the whole collection
+                    if (notModified(req, res, new Validator("collection:" + coll.id + ":items", -1L).andPage(items))) return "";
+                    linkNext(req, res, items);
+                    tag(req, coll);
+                    return listToMedia(req, res, items, Item.XList::new);
+                }
+            } catch (Exception e) {
+                return internalError(e, res);
+            }
+        });
+
+        get("/collections/:collectionId/items/export", (req, res) -> {
+            // every item, as newline-delimited JSON, streamed as read - never cached
+            try (Handle hdl = dbi.open()) {
+                Collection coll = Collection.findById(hdl, Integer.valueOf(req.params(":collectionId")), null);
+                if (coll == null) {
+                    res.status(404);
+                    return "No such collection: " + req.params(":collectionId");
+                }
+                res.type("application/x-ndjson");
+                Timing.report(req, res, -1L);
+                try (OutputStream out = res.raw().getOutputStream()) {
+                    Item.exportByColl(hdl, coll.id, req.queryMap(), items -> {
+                        try {
+                            for (Item item : items) {
+                                Serializer.toJson(item, out, false);
+                                out.write('\n');
+                            }
+                            // send each batch as it is done, rather than when the buffer fills
+                            out.flush();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
                 }
+                return "";
             } catch (Exception e) {
                 return internalError(e, res);
             }
         });
 
         get("/items", (req, res) -> {
+            if (req.queryParams("ids") != null) {
+                return membersToMedia(req, res, dbi, idsFromParam(req), "/items/", "items", (hdl, ids) -> Item.findByIds(hdl, ids, req.queryMap()));
+            }
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
                 List<Item> items = Item.findAll(hdl, req.queryMap());
-                return acceptXml(req) ? dataToXml(res, new Item.XList(items)) :
-                                        dataToJson(res, items);
+                linkNext(req, res, items);
+                return listToMedia(req, res, items, Item.XList::new);
             } catch (Exception e) {
                 return internalError(e, res);
             }
@@ -421,6 +521,7 @@ public class Backrest {
         get("/items/:itemId", (req, res) -> {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
+                if (notModified(req, res, Item.validator(hdl, Integer.valueOf(req.params(":itemId")), expandList(req.queryMap())))) return "";
                 Item item = Item.findById(hdl, Integer.valueOf(req.params(":itemId")), req.queryMap());
                 if (item == null) {
                     res.status(404);
@@ -436,14 +537,15 @@ public class Backrest {
         get("/items/:itemId/metadata", (req, res) -> {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
+                if (notModified(req, res, Item.validator(hdl, Integer.valueOf(req.params(":itemId"))))) return "";
                 Item item = Item.findById(hdl, Integer.valueOf(req.params(":itemId")), req.queryMap());
                 if (item == null) {
                     res.status(404);
                     return "No such item: " + req.params(":itemId");
                 } else {
                     List<MetadataValue> mdList = MetadataValue.findByItem(hdl, item.id);
-                    return acceptXml(req) ? dataToXml(res, new MetadataValue.XList(mdList)) :
-                                            dataToJson(res, mdList);
+                    tag(req, item);
+                    return listToMedia(req, res, mdList, MetadataValue.XList::new);
                 }
             } catch (Exception e) {
                 return internalError(e, res);
@@ -453,14 +555,15 @@ public class Backrest {
         get("/items/:itemId/bitstreams", (req, res) -> {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
+                if (notModified(req, res, Item.validator(hdl, Integer.valueOf(req.params(":itemId")), Arrays.asList("bitstreams")))) return "";
                 Item item = Item.findById(hdl, Integer.valueOf(req.params(":itemId")), req.queryMap());
                 if (item == null) {
                     res.status(404);
                     return "No such item: " + req.params(":itemId");
                 } else {
                     List<Bitstream> bitstreams = Bitstream.findByItem(hdl, item.id);
-                    return acceptXml(req) ? dataToXml(res, new Bitstream.XList(bitstreams)) :
-                                            dataToJson(res, bitstreams);
+                    tag(req, item);
+                    return listToMedia(req, res, bitstreams, Bitstream.XList::new);
                 }
             } catch (Exception e) {
                 return internalError(e, res);
@@ -468,11 +571,15 @@ public class Backrest {
         });
 
         get("/bitstreams", (req, res) -> {
+            if (req.queryParams("ids") != null) {
+                return membersToMedia(req, res, dbi, idsFromParam(req), "/bitstreams/", "bitstreams", (hdl, ids) -> Bitstream.findByIds(hdl, ids, req.queryMap()));
+            }
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
                 List<Bitstream> bitstreams = Bitstream.findAll(hdl, req.queryMap());
-                return acceptXml(req) ? dataToXml(res, new Bitstream.XList(bitstreams)) :
-                                        dataToJson(res, bitstreams);
+                // only cursor paging shares the DBID ordering
+                if (afterFromParam(req.queryMap()) != -1) linkNext(req, res, bitstreams);
+                return listToMedia(req, res, bitstreams, Bitstream.XList::new);
             } catch (Exception e) {
                 return internalError(e, res);
             }
@@ -481,6 +588,7 @@ public class Backrest {
         get("/bitstreams/:bitstreamId", (req, res) -> {
             if (inCache(req)) return fromCache(req, res);
             try (Handle hdl = dbi.open()) {
+                if (notModified(req, res, Bitstream.validator(hdl, Integer.valueOf(req.params(":bitstreamId"))))) return "";
                 Bitstream bitstream = Bitstream.findById(hdl, Integer.valueOf(req.params(":bitstreamId")), req.queryMap());
                 if (bitstream == null) {
                     res.status(404);
@@ -502,8 +610,8 @@ public class Backrest {
                     return "No such bitstream: " + req.params(":bitstreamId");
                 } else {
                     List<ResourcePolicy> policies = ResourcePolicy.findByResource(hdl, Bitstream.TYPE, bitstream.id);
-                    return acceptXml(req) ? dataToXml(res, new ResourcePolicy.XList(policies)) :
-                                            dataToJson(res, policies);
+                    tag(req, bitstream);
+                    return listToMedia(req, res, policies, ResourcePolicy.XList::new);
                 }
             } catch (Exception e) {
                 return internalError(e, res);
@@ -520,6 +628,8 @@ public class Backrest {
                     if (isNullOrEmpty(Backrest.assetLocator)) {
                       res.status(403);
                       return "Inaccessible bitstream: " + req.params(":bitstreamId");
+                    } else if (bitstream.assetFile() != null) {
+                        return sendFile(req, res, bitstream, bitstream.assetFile());
                     } else {
                         res.status(200);
                         res.type(bitstream.mimeType);
@@ -538,28 +648,61 @@ public class Backrest {
         });
 
         get("/mama", (req, res) -> {
-            if (isNullOrEmpty(req.queryParams("qf")) || isNullOrEmpty(req.queryParams("qv"))) {
+            String qf = req.queryParams("qf");
+            String qv = req.queryParams("qv");
+            if (isNullOrEmpty(qf) || isNullOrEmpty(qv)) {
                 halt(400, "Must supply field and value query parameters 'qf' and 'qv'");
             }
             //if (inCache(req)) return fromCache(req, res);
-            try (Handle hdl = dbi.open()) {
-                if (findFieldId(hdl, req.queryParams("qf")) != -1) {
-                    List<String> results = findItems(hdl, req.queryParams("qf"), req.queryParams("qv"), req.queryParamsValues("rf"));
+            int fieldId = FieldRegistry.fieldId(qf);
+            if (fieldId == -1) {
+                res.status(404);
+                return "No such field: " + qf;
+            }
+            // indexed fields are resolved without a query, and need one only for the response fields
+            int[] itemIds = MetadataIndex.lookup(fieldId, qv);
+            if (itemIds == null || itemIds.length > 0) {
+                try (Handle hdl = dbi.open()) {
+                    List<String> results = (itemIds != null) ? findItems(hdl, itemIds, req.queryParamsValues("rf"))
+                                                             : findItems(hdl, qf, qv, req.queryParamsValues("rf"));
                     if (results.size() > 0) {
                         res.type("application/json");
                         return "{ " +
-                                  jsonValue("field", req.queryParams("qf"), true) + ",\n" +
-                                  jsonValue("value", req.queryParams("qv"), true) + ",\n" +
+                                  jsonValue("field", qf, true) + ",\n" +
+                                  jsonValue("value", qv, true) + ",\n" +
                                   jsonValue("items", results.stream().collect(Collectors.joining(",", "[", "]")), false) + "\n" +
                                " }";
-                    } else {
-                        res.status(404);
-                        return "No items found for: " + req.queryParams("qf") + "::" + req.queryParams("qv");
                     }
-                } else {
-                    res.status(404);
-                    return "No such field: " + req.queryParams("qf");
+                } catch (Exception e) {
+                    return internalError(e, res);
                 }
+            }
+            res.status(404);
+            return "No items found for: " + qf + "::" + qv;
+        });
+
+        post("/mama", (req, res) -> {
+            String qf = req.queryParams("qf");
+            if (isNullOrEmpty(qf)) {
+                halt(400, "Must supply field query parameter 'qf'");
+            }
+            List<String> values = valuesFromRequest(req);
+            if (values == null || values.isEmpty() || values.size() > MAX_LOOKUP_VALUES) {
+                halt(400, "Must supply a JSON array of 1 to " + MAX_LOOKUP_VALUES + " values");
+            }
+            if (FieldRegistry.fieldId(qf) == -1) {
+                res.status(404);
+                return "No such field: " + qf;
+            }
+            try (Handle hdl = dbi.open()) {
+                Map<String, List<String>> results = findItems(hdl, qf, values, req.queryParamsValues("rf"));
+                res.type("application/json");
+                return "{ " +
+                          jsonValue("field", qf, true) + ",\n" +
+                          jsonValue("items", results.entrySet().stream()
+                                                    .map(e -> jsonString(e.getKey()) + ": " + e.getValue().stream().collect(Collectors.joining(",", "[", "]")))
+                                                    .collect(Collectors.joining(",\n", "{", "}")), false) + "\n" +
+                       " }";
             } catch (Exception e) {
                 return internalError(e, res);
             }
@@ -572,8 +715,7 @@ public class Backrest {
                 int fieldId = findFieldId(hdl, mdv.key);
                 if (fieldId != -1) {
                     List<Item> items = Item.findByMetadata(hdl, fieldId, mdv, req.queryMap());
-                    return acceptXml(req) ? dataToXml(res, new Item.XList(items)) :
-                                            dataToJson(res, items);
+                    return listToMedia(req, res, items, Item.XList::new);
                 } else {
                     res.status(404);
                     return "Unknown metadata field";
@@ -592,15 +734,88 @@ public class Backrest {
 
         after((req, res) -> {
             Timer.Context context = (Timer.Context)req.attribute("timerCtx");
-            context.stop();
-            remember(req, res.body());
-            // log each request, in more or less 'CLF' aka Apache format
-            String clfTime = ZonedDateTime.now().format(clFmt);
-            logger.info("{} - - [{}] \"{} {} {}\" {} {}", req.ip(), clfTime, req.requestMethod(),
-                        req.pathInfo(), req.protocol(), res.raw().getStatus(), res.body());
+            long latency = context.stop();
+            remember(req, res, res.body());
+            // log each request - just the size of the body, never its contents
+            AccessLog.log(req.ip(), req.requestMethod(), req.pathInfo(), req.protocol(), req.attribute("route"),
+                          res.raw().getStatus(), bytesSent(res), latency, req.attribute("cacheCtl"));
         });
 
         awaitInitialization();
+        if (warmup) {
+            Warmup.run();
+        }
+    }
+
+    private static Validator validator(Handle hdl, DSpaceObject dso, Request req) {
+        switch (dso.type) {
+            case "community": return Community.validator(hdl, dso.id);
+            // a collection with expanded items is validated once they are read
+            case "collection": return itemsExpanded(req) ? null : Collection.validator(hdl, dso.id);
+            case "item": return Item.validator(hdl, dso.id, expandList(req.queryMap()));
+            default: return null;
+        }
+    }
+
+    private static boolean itemsExpanded(Request req) {
+        List<String> expands = expandList(req.queryMap());
+        return expands.contains("items") || expands.contains("all");
+    }
+
+    private static boolean notModified(Request req, Response res, Validator validator) {
+        // no validator means no such object - left for the route to report
+        if (validator != null && validator.notModified(req, res)) {
+            res.status(304);
+            return true;
+        }
+        return false;
+    }
+
+    private static String sendFile(Request req, Response res, Bitstream bitstream, Path assetFile) throws IOException {
+        long size = Files.size(assetFile);
+        long modified = Files.getLastModifiedTime(assetFile).toMillis();
+        String etag = bitstream.etag();
+        res.type(bitstream.mimeType);
+        res.header("Accept-Ranges", "bytes");
+        if (etag != null) res.header("ETag", etag);
+        res.raw().setDateHeader("Last-Modified", modified);
+        ByteRange range = null;
+        if (ifRangeMatches(req, etag, modified)) {
+            range = ByteRange.parse(req.headers("Range"), size);
+        }
+        if (range == ByteRange.UNSATISFIABLE) {
+            res.status(416);
+            res.header("Content-Range", "bytes */" + size);
+            return "";
+        } else if (range != null) {
+            res.status(206);
+            res.header("Content-Range", range.contentRange(size));
+        } else {
+            res.status(200);
+            range = new ByteRange(0L, size - 1);
+        }
+        res.header("Content-Length", Long.toString(range.length()));
+        try (FileChannel channel = FileChannel.open(assetFile, StandardOpenOption.READ);
+             OutputStream resOut = res.raw().getOutputStream()) {
+            range.transfer(channel, resOut);
+        }
+        return "";
+    }
+
+    private static boolean ifRangeMatches(Request req, String etag, long modified) {
+        // a stale If-Range validator means the client wants the whole (changed) file
+        String ifRange = req.headers("If-Range");
+        if (ifRange == null) {
+            return true;
+        } else if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // weak validators never match
+            return ifRange.equals(etag);
+        }
+        try {
+            return req.raw().getDateHeader("If-Range") / 1000 == modified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
     }
 
     private static String internalError(Exception e, Response res) {
@@ -609,6 +824,71 @@ public class Backrest {
         return "Internal system error: " + e.getMessage();
     }
 
+    private static long bytesSent(Response res) {
+        // streamed bodies have been written, others are yet to be
+        long written = (res.raw() instanceof org.eclipse.jetty.server.Response) ?
+                       ((org.eclipse.jetty.server.Response)res.raw()).getHttpChannel().getBytesWritten() : 0L;
+        // as Spark will send it - UTF-8 encoded, so not one byte per character
+        String body = res.body();
+        return written + ((body != null) ? body.getBytes(StandardCharsets.UTF_8).length : 0);
+    }
+
+    private static void get(String path, Route route) {
+        // shadows Spark's, so that every route is timed by its pattern, and lands any cache flight it leads
+        Spark.get(path, Timing.timed(metrics, "GET", path, Cache.landing(route)));
+    }
+
+    private static void post(String path, Route route) {
+        Spark.post(path, Timing.timed(metrics, "POST", path, Cache.landing(route)));
+    }
+
+    static void refreshEvery(String name, Runnable task) {
+        refreshEvery(name, millisFromEnv("BACKREST_REFRESH", "15m"), task);
+    }
+
+    static void refreshEvery(String name, long period, Runnable task) {
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                // an uncaught exception would cancel all future refreshes
+                logger.error("Exception refreshing {}: {}", name, e.getMessage());
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    static long millisFromEnv(String name, String defValue) {
+        // durations have the same form as cache retention, e.g. '15m'
+        String duration = System.getenv(name);
+        if (isNullOrEmpty(duration)) duration = defValue;
+        int len = duration.length();
+        return Cache.getUnit(duration.charAt(len-1)).toMillis(Long.valueOf(duration.substring(0, len-1)));
+    }
+
+    static int intFromEnv(String name, int defValue) {
+        String value = System.getenv(name);
+        return isNullOrEmpty(value) ? defValue : Integer.valueOf(value);
+    }
+
+    private static HikariDataSource pooledSource(Properties props) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("backrest-db");
+        config.setJdbcUrl(props.getProperty("dburl"));
+        config.setUsername(props.getProperty("user"));
+        config.setPassword(props.getProperty("password"));
+        // pass any other connection properties through to the driver
+        props.stringPropertyNames().stream()
+             .filter(key -> ! Arrays.asList("dburl", "user", "password", "assets").contains(key))
+             .forEach(key -> config.addDataSourceProperty(key, props.getProperty(key)));
+        config.setMaximumPoolSize(intFromEnv("BACKREST_DB_POOL_MAX", 10));
+        config.setMinimumIdle(intFromEnv("BACKREST_DB_POOL_MIN_IDLE", 2));
+        config.setConnectionTimeout(millisFromEnv("BACKREST_DB_POOL_TIMEOUT", "30s"));
+        config.setMaxLifetime(millisFromEnv("BACKREST_DB_POOL_LIFETIME", "30m"));
+        // active, idle, pending connection gauges and a connection wait timer
+        config.setMetricRegistry(metrics);
+        return new HikariDataSource(config);
+    }
+
     private static Properties findConfig(String[] args) {
         Properties props = new Properties();
         if (args.length == 1) {
@@ -649,37 +929,120 @@ public class Backrest {
         }
     }
 
+    private static <T> String listToMedia(Request req, Response res, List<T> list, Function<List<T>, Object> xmlList) {
+        tag(req, list);
+        return acceptXml(req) ? dataToXml(req, res, xmlList.apply(list)) : dataToJson(req, res, list);
+    }
+
     private static String dataToMedia(Request req, Response res, Object data) {
+        tag(req, data);
         String accept = req.headers("Accept");
         if (null != accept && accept.contains("application/xml")) {
-            return dataToXml(res, data);
+            return dataToXml(req, res, data);
         } else {
-            return dataToJson(res, data);
+            return dataToJson(req, res, data);
         }
     }
 
-    private static String dataToJson(Response res, Object data) {
-        res.type("application/json");
+    private static String membersToMedia(Request req, Response res, DBI dbi, List<Integer> ids, String path, String listName,
+                                         BiFunction<Handle, List<Integer>, List<? extends DSpaceObject>> finder) {
+        // a multi-get is assembled from a document per object, so only uncached objects need be built
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.enable(SerializationFeature.INDENT_OUTPUT);
-            StringWriter sw = new StringWriter();
-            mapper.writeValue(sw, data);
-            return sw.toString();
+            Map<Integer, byte[]> members = Cache.members(req, path, ids);
+            List<Integer> misses = ids.stream().filter(id -> ! members.containsKey(id)).collect(Collectors.toList());
+            req.attribute("cacheCtl", cacheActive() ? "members " + members.size() + "/" + ids.size() : "none");
+            if (! misses.isEmpty()) {
+                try (Handle hdl = dbi.open()) {
+                    for (DSpaceObject member : finder.apply(hdl, misses)) {
+                        byte[] document = memberToMedia(req, member);
+                        members.put(member.id, document);
+                        Cache.putMember(req, path, member, document);
+                    }
+                }
+            }
+            boolean xml = acceptXml(req);
+            res.type(xml ? "application/xml" : "application/json");
+            Timing.report(req, res, -1L);
+            try (OutputStream out = res.raw().getOutputStream()) {
+                out.write((xml ? XML_DECLARATION + "<" + listName + ">" : "[").getBytes(StandardCharsets.UTF_8));
+                boolean first = true;
+                // in the order requested - unknown ids are simply left out
+                for (Integer id : ids) {
+                    byte[] document = members.get(id);
+                    if (document != null) {
+                        if (! first && ! xml) out.write(',');
+                        out.write(document);
+                        first = false;
+                    }
+                }
+                out.write((xml ? "</" + listName + ">" : "]").getBytes(StandardCharsets.UTF_8));
+            }
+            return "";
+        } catch (Exception e) {
+            return internalError(e, res);
+        }
+    }
+
+    private static byte[] memberToMedia(Request req, Object data) throws IOException, JAXBException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        if (acceptXml(req)) {
+            Serializer.toXmlFragment(data, out, pretty(req));
+            xmlTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } else {
+            Serializer.toJson(data, out, pretty(req));
+            jsonTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<Integer> idsFromParam(Request req) {
+        // distinct DBIDs, in the order requested
+        Set<Integer> ids = new LinkedHashSet<>();
+        try {
+            for (String id : Splitter.on(',').trimResults().omitEmptyStrings().split(req.queryParams("ids"))) {
+                ids.add(Integer.valueOf(id));
+            }
+        } catch (NumberFormatException e) {
+            halt(400, "Parameter 'ids' must be a comma-separated list of ids");
+        }
+        if (ids.isEmpty() || ids.size() > MAX_LOOKUP_VALUES) {
+            halt(400, "Parameter 'ids' must list between 1 and " + MAX_LOOKUP_VALUES + " ids");
+        }
+        return new ArrayList<>(ids);
+    }
+
+    private static boolean pretty(Request req) {
+        return "true".equals(req.queryParams("pretty"));
+    }
+
+    private static String dataToJson(Request req, Response res, Object data) {
+        res.type("application/json");
+        // stream directly to client (and cache, if need be)
+        Timing.report(req, res, -1L);
+        try (OutputStream out = capture(req, res.raw().getOutputStream())) {
+            long start = System.nanoTime();
+            Serializer.toJson(data, out, pretty(req));
+            long elapsed = System.nanoTime() - start;
+            jsonTime.update(elapsed, TimeUnit.NANOSECONDS);
+            // small documents are still buffered, so may report their serialization
+            Timing.report(req, res, elapsed);
+            return "";
         } catch (IOException e) {
             throw new RuntimeException("IOException from ObjectMapper: " + e.getMessage());
         }
     }
 
-    private static String dataToXml(Response res, Object data) {
+    private static String dataToXml(Request req, Response res, Object data) {
         res.type("application/xml");
-        try {
-            JAXBContext context = JAXBContext.newInstance(data.getClass());
-            Marshaller marshaller = context.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            StringWriter sw = new StringWriter();
-            marshaller.marshal(data, sw);
-            return sw.toString();
+        Timing.report(req, res, -1L);
+        try (OutputStream out = capture(req, res.raw().getOutputStream())) {
+            long start = System.nanoTime();
+            Serializer.toXml(data, out, pretty(req));
+            long elapsed = System.nanoTime() - start;
+            xmlTime.update(elapsed, TimeUnit.NANOSECONDS);
+            Timing.report(req, res, elapsed);
+            return "";
         } catch (Exception e) {
             throw new RuntimeException("JAXB Exception: " + e.getMessage());
         }
@@ -689,16 +1052,13 @@ public class Backrest {
         String ctype = req.headers("Content-Type");
         if (null == ctype || ctype.contains("application/xml")) {
             try {
-                JAXBContext context = JAXBContext.newInstance(MetadataValue.class);
-                Unmarshaller unmarshaller = context.createUnmarshaller();
-                StringBuffer xmlStr = new StringBuffer(req.body());
-                return (MetadataValue)unmarshaller.unmarshal(new StreamSource(new StringReader(xmlStr.toString())));
+                return Serializer.fromXml(req.body(), MetadataValue.class);
             } catch (Exception e) {
                 throw new RuntimeException("JAXB Exception: " + e.getMessage());
             }
         } else { // assume it's JSON
             try {
-                JsonNode jsonMdv = new ObjectMapper().readTree(req.body());
+                JsonNode jsonMdv = Serializer.readJson(req.body());
                 String lang = jsonMdv.has("language") ? jsonMdv.findValue("language").asText() : "";
                 return new MetadataValue(-1, jsonMdv.findValue("key").asText(),
                                          jsonMdv.findValue("value").asText(),
@@ -709,21 +1069,33 @@ public class Backrest {
         }
     }
 
+    private static List<String> valuesFromRequest(Request req) {
+        // a JSON array of strings, or null if the body is not one
+        try {
+            JsonNode jsonValues = Serializer.readJson(req.body());
+            if (jsonValues == null || ! jsonValues.isArray()) return null;
+            List<String> values = new ArrayList<>();
+            for (JsonNode value : jsonValues) {
+                if (! value.isTextual()) return null;
+                values.add(value.asText());
+            }
+            return values;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     private static Security.User userFromRequest(Request req) {
         String ctype = req.headers("Content-Type");
         if (null == ctype || ctype.contains("application/xml")) {
             try {
-                JAXBContext context = JAXBContext.newInstance(Security.User.class);
-                Unmarshaller unmarshaller = context.createUnmarshaller();
-                StringBuffer xmlStr = new StringBuffer(req.body());
-                return (Security.User)unmarshaller.unmarshal(new StreamSource(new StringReader(xmlStr.toString())));
+                return Serializer.fromXml(req.body(), Security.User.class);
             } catch (Exception e) {
                 throw new RuntimeException("JAXB Exception: " + e.getMessage());
             }
         } else { // assume it's JSON
             try {
-                ObjectMapper mapper = new ObjectMapper();
-                JsonNode jsonUser = mapper.readTree(req.body());
+                JsonNode jsonUser = Serializer.readJson(req.body());
                 return new Security.User(jsonUser.findValue("email").asText(), jsonUser.findValue("password").asText());
             } catch (Exception e) {
                 throw new RuntimeException("IOException from ObjectMapper: " + e.getMessage());
@@ -731,6 +1103,11 @@ public class Backrest {
         }
     }
 
+    private static String jsonString(String value) {
+        // lookup values come from clients, so must be escaped
+        return "\"" + new String(JsonStringEncoder.getInstance().quoteAsString(value)) + "\"";
+    }
+
     private static String jsonValue(String name, String value, boolean primitive) {
         StringBuilder sb = new StringBuilder();
         sb.append("\"").append(name).append("\": ");
@@ -743,17 +1120,22 @@ public class Backrest {
     }
 
     private static List<String> expandList(QueryParamsMap params) {
-        if (params != null) {
-            String expands = params.value("expand");
-            if (expands != null) {
-                return new ArrayList<String>(Arrays.asList(expands.split(",")));
-            }
+        return expandList((params != null) ? params.value("expand") : null);
+    }
+
+    private static List<String> expandList(String expands) {
+        if (expands != null) {
+            return new ArrayList<String>(Arrays.asList(expands.split(",")));
         }
         return new ArrayList<String>();
     }
 
     static List<String> toExpandList(QueryParamsMap params, List<String> canExpand) {
-        List<String> toExpand = expandList(params);
+        return toExpandList((params != null) ? params.value("expand") : null, canExpand);
+    }
+
+    static List<String> toExpandList(String expands, List<String> canExpand) {
+        List<String> toExpand = expandList(expands);
         if (toExpand.contains("all")) {
             toExpand.addAll(canExpand);
             canExpand.clear();
@@ -773,6 +1155,37 @@ public class Backrest {
         return isNullOrEmpty(offset) ? 0 : Integer.valueOf(offset);
     }
 
+    static int afterFromParam(QueryParamsMap params) {
+        String after = (params != null) ? params.value("after") : null;
+        return isNullOrEmpty(after) ? -1 : Integer.valueOf(after);
+    }
+
+    private static void linkNext(Request req, Response res, List<? extends DSpaceObject> page) {
+        // a full page may have a successor: point to it with a cursor
+        if (page.size() > 0 && page.size() == limitFromParam(req.queryMap())) {
+            StringBuilder sb = new StringBuilder(req.pathInfo()).append("?after=").append(page.get(page.size() - 1).id);
+            for (String param : req.queryParams()) {
+                if (! "after".equals(param) && ! "offset".equals(param)) {
+                    for (String value : req.queryParamsValues(param)) {
+                        sb.append("&").append(param).append("=").append(urlEncode(value));
+                    }
+                }
+            }
+            String link = "<" + sb.toString() + ">; rel=\"next\"";
+            res.header("Link", link);
+            // kept with a cached copy of the page
+            req.attribute("link", link);
+        }
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+
     @XmlRootElement(name="status")
     static class Status {
 
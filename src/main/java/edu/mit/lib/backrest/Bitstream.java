@@ -15,11 +15,14 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -89,28 +92,84 @@ public class Bitstream extends DSpaceObject {
         this.policies = policies;
     }
 
+    @Override
+    void addTags(Set<String> tags) {
+        super.addTags(tags);
+        tagsOf(parent, tags);
+    }
+
     static List<Bitstream> findAll(Handle hdl, QueryParamsMap params) {
         int limit = Backrest.limitFromParam(params);
+        int after = Backrest.afterFromParam(params);
+        BitstreamMapper mapper = new BitstreamMapper(hdl, params);
+        if (after != -1) {
+            // names are not unique, so cursor paging follows DBID order
+            return mapper.expand(hdl, hdl.createQuery(SELECT + "where bitstream_id > ? order by bitstream_id limit ?")
+                                         .bind(0, after).bind(1, limit)
+                                         .map(mapper).list());
+        }
         int offset = Backrest.offsetFromParam(params);
-        return hdl.createQuery(SELECT + "order by name limit ? offset ?")
-                  .bind(0, limit).bind(1, offset)
-                  .map(new BitstreamMapper(hdl, params)).list();
+        return mapper.expand(hdl, hdl.createQuery(SELECT + "order by name limit ? offset ?")
+                                     .bind(0, limit).bind(1, offset)
+                                     .map(mapper).list());
     }
 
     static List<Bitstream> findByItem(Handle hdl, int itemId) {
-        String queryString = "select bitstream.* from bitstream, bundle2bitstream, item2bundle " +
+        List<Bitstream> bitstreams = findByItems(hdl, Arrays.asList(itemId)).get(itemId);
+        return (bitstreams != null) ? bitstreams : new ArrayList<>();
+    }
+
+    static Map<Integer, List<Bitstream>> findByItems(Handle hdl, List<Integer> itemIds) {
+        // bundle name is joined here rather than looked up per bitstream
+        String queryString = "select bitstream.*, bundle.name as bundle_name, item2bundle.item_id " +
+                             "from bitstream, bundle, bundle2bitstream, item2bundle " +
                              "where bitstream.bitstream_id=bundle2bitstream.bitstream_id " +
+                             "and bundle.bundle_id=bundle2bitstream.bundle_id " +
                              "and item2bundle.bundle_id=bundle2bitstream.bundle_id " +
-                             "and item2bundle.item_id = ?";
+                             "and item2bundle.item_id in (" + DSpaceObject.idList(itemIds) + ")";
+        BitstreamMapper mapper = new BitstreamMapper(hdl, null, true);
         return hdl.createQuery(queryString)
-                  .bind(0, itemId)
-                  .map(new BitstreamMapper(hdl, null)).list();
+                  .map((index, rs, ctx) -> new SimpleEntry<>(rs.getInt("item_id"), mapper.map(index, rs, ctx)))
+                  .list().stream()
+                  .collect(Collectors.groupingBy(e -> e.getKey(),
+                           Collectors.mapping(e -> e.getValue(), Collectors.toList())));
     }
 
     static Bitstream findById(Handle hdl, int bsId, QueryParamsMap params) {
-        return hdl.createQuery(SELECT + " where bitstream_id = ?")
-                   .bind(0, bsId)
-                   .map(new BitstreamMapper(hdl, params)).first();
+        BitstreamMapper mapper = new BitstreamMapper(hdl, params);
+        return mapper.expand(hdl, hdl.createQuery(SELECT + " where bitstream_id = ?")
+                                     .bind(0, bsId)
+                                     .map(mapper).first());
+    }
+
+    static List<Bitstream> findByIds(Handle hdl, List<Integer> bsIds, QueryParamsMap params) {
+        // bundle name is joined here rather than looked up per bitstream - logos have none, and
+        // a bitstream in more than one bundle takes the first, so that it is listed only once
+        String queryString = "select bitstream.*, bundle.name as bundle_name from bitstream " +
+                             "left join bundle on bundle.bundle_id = (select min(bundle_id) from bundle2bitstream " +
+                             "where bundle2bitstream.bitstream_id = bitstream.bitstream_id) " +
+                             "where bitstream.bitstream_id in (" + DSpaceObject.idList(bsIds) + ")";
+        BitstreamMapper mapper = new BitstreamMapper(hdl, params, true);
+        return mapper.expand(hdl, hdl.createQuery(queryString)
+                                     .map(mapper).list());
+    }
+
+    static Validator validator(Handle hdl, int bsId) {
+        // content checksum, and owning item (if any) modification time
+        String queryString = "select bitstream.checksum, item.last_modified from bitstream " +
+                             "left join bundle2bitstream on bitstream.bitstream_id = bundle2bitstream.bitstream_id " +
+                             "left join item2bundle on bundle2bitstream.bundle_id = item2bundle.bundle_id " +
+                             "left join item on item2bundle.item_id = item.item_id " +
+                             "where bitstream.bitstream_id = ?";
+        return hdl.createQuery(queryString)
+                  .bind(0, bsId)
+                  .map((index, rs, ctx) -> {
+                      Timestamp modified = rs.getTimestamp("last_modified");
+                      long lastModified = (modified != null) ? modified.getTime() : -1L;
+                      return new Validator("bitstream:" + bsId + ":" + rs.getString("checksum") + ":" + lastModified,
+                                           lastModified);
+                  })
+                  .first();
     }
 
     static int findOwner(Handle hdl, int bsId) {
@@ -155,10 +214,7 @@ public class Bitstream extends DSpaceObject {
         URI locatorUri = new URI(Backrest.assetLocator);
         String scheme = locatorUri.getScheme();
         if (scheme.equals("file")) {
-            // construct a filesystem path to asset -
-            // makes a ridiculous number of simplifying assumptions
-            Path assetFile = Paths.get(locatorUri).resolve(assetFilePath());
-            return Files.newInputStream(assetFile);
+            return Files.newInputStream(assetFile());
         } else if (scheme.startsWith("http")) {
             // request asset from DSpace server
             URI assetURI = new URI(assetUriString(hdl));
@@ -169,6 +225,22 @@ public class Bitstream extends DSpaceObject {
         }
     }
 
+    Path assetFile() throws URISyntaxException {
+        // only defined when the asset store is locally reachable
+        URI locatorUri = new URI(Backrest.assetLocator);
+        if ("file".equals(locatorUri.getScheme())) {
+            // construct a filesystem path to asset -
+            // makes a ridiculous number of simplifying assumptions
+            return Paths.get(locatorUri).resolve(assetFilePath());
+        }
+        return null;
+    }
+
+    String etag() {
+        // content checksum is a natural strong validator
+        return (checkSum != null && ! isNullOrEmpty(checkSum.value)) ? "\"" + checkSum.value + "\"" : null;
+    }
+
     private String assetUriString(Handle hdl) {
         String encName = (name != null) ? URLEncoder.encode(name) : "logo";
         StringBuilder sb = new StringBuilder(Backrest.assetLocator);
@@ -198,34 +270,64 @@ public class Bitstream extends DSpaceObject {
         return buf.toString();
     }
 
+    /**
+     * BitstreamMapper maps only the bitstream row itself: expansions are loaded
+     * afterwards for all the rows at once, as ItemMapper does.
+     */
     static class BitstreamMapper implements ResultSetMapper<Bitstream> {
 
-        private final List<String> canExpand = new ArrayList<String>(Arrays.asList("parent", "policies", "all"));
+        static final List<String> EXPANDS = Arrays.asList("parent", "policies", "all");
+        private final List<String> canExpand = new ArrayList<String>(EXPANDS);
         private final List<String> toExpand;
         private final Handle hdl;
+        private final boolean bundleJoined;
 
         public BitstreamMapper(Handle hdl, QueryParamsMap params) {
+            this(hdl, params, false);
+        }
+
+        public BitstreamMapper(Handle hdl, QueryParamsMap params, boolean bundleJoined) {
             this.hdl = hdl;
             this.toExpand = Backrest.toExpandList(params, canExpand);
+            this.bundleJoined = bundleJoined;
         }
 
         @Override
         public Bitstream map(int index, ResultSet rs, StatementContext ctx) throws SQLException {
             int id = rs.getInt("bitstream_id");
-            List<ResourcePolicy> policies = null;
-            DSpaceObject parent = null;
+            CheckSum checkSum = new CheckSum(rs.getString("checksum_algorithm"), rs.getString("checksum"));
+            return new Bitstream(id, rs.getString("name"), rs.getLong("size_bytes"), checkSum,
+                                 rs.getString("description"),
+                                 bundleJoined ? rs.getString("bundle_name") : bundleName(hdl, id),
+                                 format(hdl, rs.getInt("bitstream_format_id")), rs.getString("internal_id"),
+                                 rs.getInt("sequence_id"), null, null, canExpand);
+        }
+
+        Bitstream expand(Handle hdl, Bitstream bitstream) {
+            if (bitstream != null) {
+                expand(hdl, Arrays.asList(bitstream));
+            }
+            return bitstream;
+        }
+
+        List<Bitstream> expand(Handle hdl, List<Bitstream> bitstreams) {
+            if (bitstreams.isEmpty()) return bitstreams;
+            List<Integer> bsIds = bitstreams.stream().map(b -> b.id).collect(Collectors.toList());
+            // one query per expansion type (and parent type) for all the rows
+            Map<Integer, DSpaceObject> parents = null;
+            Map<Integer, List<ResourcePolicy>> policies = null;
             for (String expand : toExpand) {
                 switch (expand) {
-                    case "parent": parent = DSpaceObject.findByBitstream(hdl, id); break;
-                    case "policies": policies = ResourcePolicy.findByResource(hdl, TYPE, id); break;
+                    case "parent": parents = DSpaceObject.findByBitstreams(hdl, bsIds); break;
+                    case "policies": policies = ResourcePolicy.findByResources(hdl, TYPE, bsIds); break;
                     default: break;
                 }
             }
-            CheckSum checkSum = new CheckSum(rs.getString("checksum_algorithm"), rs.getString("checksum"));
-            return new Bitstream(id, rs.getString("name"), rs.getLong("size_bytes"), checkSum,
-                                 rs.getString("description"), bundleName(hdl, id),
-                                 format(hdl, rs.getInt("bitstream_format_id")), rs.getString("internal_id"),
-                                 rs.getInt("sequence_id"), parent, policies, canExpand);
+            for (Bitstream bitstream : bitstreams) {
+                if (parents != null) bitstream.parent = parents.get(bitstream.id);
+                if (policies != null) bitstream.policies = policies.getOrDefault(bitstream.id, new ArrayList<>());
+            }
+            return bitstreams;
         }
     }
 
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+/**
+ * ByteRange is an inclusive span of bytes in a file, as requested by an HTTP
+ * 'Range' header. Only single ranges are honored: a multi-range request is
+ * answered with the whole file, which the spec permits. The bytes themselves
+ * are sent from memory-mapped regions of the file, so they move from the page
+ * cache to the socket without being copied through heap buffers.
+ *
+ * @author richardrodgers
+ */
+public class ByteRange {
+
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1L, -1L);
+    // largest file region mapped at once
+    private static final long MAP_CHUNK = 64L * 1024 * 1024;
+
+    final long start;
+    final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    String contentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    static ByteRange parse(String header, long size) {
+        // null means serve the whole file
+        if (header == null || ! header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // suffix range - the final n bytes
+                if (last.isEmpty()) return null;
+                long suffix = Long.parseLong(last);
+                if (suffix == 0 || size == 0) return UNSATISFIABLE;
+                return new ByteRange(Math.max(0L, size - suffix), size - 1);
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (end < start) {
+                // syntactically invalid - ignore the header
+                return null;
+            }
+            return (start < size) ? new ByteRange(start, Math.min(end, size - 1)) : UNSATISFIABLE;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    void transfer(FileChannel channel, OutputStream out) throws IOException {
+        long position = start;
+        long remaining = length();
+        if (out instanceof HttpOutput) {
+            // Jetty writes direct (mapped) buffers straight to the socket
+            HttpOutput httpOut = (HttpOutput)out;
+            while (remaining > 0) {
+                long chunk = Math.min(MAP_CHUNK, remaining);
+                httpOut.write(channel.map(FileChannel.MapMode.READ_ONLY, position, chunk));
+                position += chunk;
+                remaining -= chunk;
+            }
+        } else {
+            WritableByteChannel target = Channels.newChannel(out);
+            while (remaining > 0) {
+                long sent = channel.transferTo(position, remaining, target);
+                if (sent <= 0) {
+                    throw new IOException("File truncated during transfer");
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+    }
+}
@@ -4,57 +4,160 @@
  */
 package edu.mit.lib.backrest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.xml.bind.annotation.XmlRootElement;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import static com.codahale.metrics.MetricRegistry.*;
+
+import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 
 import static com.google.common.base.Strings.*;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
-import redis.clients.jedis.Transaction;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
 
 import org.slf4j.Logger;
 
 import spark.Request;
 import spark.Response;
+import spark.Route;
 
 /**
  * Cache provides response document caching services for backrest,
  * abstracting the implementation details. Currently back-ends are:
  * (1) in-process/in-memory Guava cache
  * (2) networked/in-memory Redis cache
+ * (3) both: a small local cache in front of a shared Redis one, with
+ *     invalidations broadcast to every node over Redis pub/sub
+ * Redis writes are queued, and made in pipelined batches by a background
+ * thread, so that they add nothing to the time taken to serve a response.
+ * Documents are held gzip-compressed in either, and sent compressed as-is
+ * to clients that accept that encoding. Concurrent misses on the same document
+ * are coalesced, so that only one request (per node, and with Redis, across
+ * nodes) builds it, while the others wait for the result. Each document is
+ * tagged with the DSpace objects whose data it contains, so that a change to
+ * one object need only invalidate the documents it appears in. Multi-get
+ * (?ids=) responses are not cached whole, but object by object, so that only
+ * the objects missing from the cache need be built.
  *
  * @author richardrodgers
  */
 public class Cache {
 
-    private static com.google.common.cache.Cache<String, String> localCache;
-    private static long localSize = 0L;
+    private static com.google.common.cache.Cache<String, Entry> localCache;
+    private static final AtomicLong localSize = new AtomicLong();
+    // cache keys of local documents, by the tags of the objects in them
+    private static final Map<String, Set<String>> tagIndex = new ConcurrentHashMap<>();
     private static JedisPool pool;
     private static int jedisExpire = -1;
+    // with a local tier in front of redis, invalidations are broadcast
+    private static final String CHANNEL = "backrest:invalidate";
+    private static JedisPubSub subscriber;
+    // documents awaiting a write to redis
+    private static BlockingQueue<Write> writes;
+    private static final int WRITE_BATCH = 64;
+    private static Meter droppedWrites;
+    private static Meter hits;
+    private static Meter misses;
+    private static Meter stale;
+    // largest response document that will be cached
+    private static final int maxDocSize = maxDocSize();
+    // documents being built, and how long to wait for one
+    private static final Map<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    private static final long flightWait = Backrest.millisFromEnv("BACKREST_CACHE_WAIT", "5s");
+    private static final long LOCK_POLL_MS = 50L;
+    // the only query parameters affecting documents, in key order, with defaults
+    private static final List<String> KEY_PARAMS = Arrays.asList("after", "expand", "limit", "offset", "pretty");
+    // multi-gets are not paged, so only these parameters shape a member
+    private static final List<String> MEMBER_KEY_PARAMS = Arrays.asList("expand", "pretty");
+    private static final Map<String, String> KEY_DEFAULTS = ImmutableMap.of("limit", "100", "offset", "0");
+    private static final String UNLOCK_SCRIPT =
+        "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
 
-    static void setCache(String svcType) {
-        Iterator<String> policies = Splitter.on(":").split(System.getenv("BACKREST_CACHE")).iterator();
+    static void setCache(String svcType, String policySpec, MetricRegistry metrics) {
+        Iterator<String> policies = Splitter.on(":").split(policySpec).iterator();
+        hits = metrics.meter(name(Cache.class, "hits"));
+        misses = metrics.meter(name(Cache.class, "misses"));
+        // documents invalidated by a change to their contents
+        stale = metrics.meter(name(Cache.class, "stale"));
         switch (svcType) {
             case "local": configLocal(policies); break;
-            case "redis": configRedis(policies); break;
+            case "redis":
+                configRedis(policies, metrics);
+                if (System.getenv("BACKREST_CACHE_L1") != null) {
+                    configLocal(Splitter.on(":").split(System.getenv("BACKREST_CACHE_L1")).iterator());
+                    subscribe();
+                }
+                break;
             default: Backrest.logger.info("Unknown cache type: {}", svcType); break;
         }
     }
 
     private static void configLocal(Iterator<String> policies) {
-        CacheBuilder builder = CacheBuilder.newBuilder();
+        CacheBuilder<String, Entry> builder = CacheBuilder.newBuilder()
+            // keep size accurate as entries are evicted, replaced or expire
+            .removalListener(n -> {
+                localSize.addAndGet(-n.getValue().size());
+                // a replacing entry has already indexed its own tags
+                if (n.getCause() != RemovalCause.REPLACED) {
+                    unindex(n.getKey(), n.getValue().tags);
+                }
+            });
         String maxEntries = policies.next();
         if (! isNullOrEmpty(maxEntries)) {
-            builder = builder.maximumSize(Long.valueOf(maxEntries));
+            long maxBytes = byteSize(maxEntries);
+            if (maxBytes != -1L) {
+                builder = builder.maximumWeight(maxBytes).weigher((key, entry) -> entry.size());
+            } else {
+                builder = builder.maximumSize(Long.valueOf(maxEntries));
+            }
         }
         String retain = policies.next();
         if (! isNullOrEmpty(retain)) {
@@ -65,7 +168,20 @@ public class Cache {
         localCache = builder.build();
     }
 
-    private static TimeUnit getUnit(char c) {
+    private static int maxDocSize() {
+        String maxKb = System.getenv("BACKREST_CACHE_DOC_MAX");
+        return (isNullOrEmpty(maxKb) ? 1024 : Integer.valueOf(maxKb)) * 1024;
+    }
+
+    private static long byteSize(String value) {
+        // a size in kb, mb or gb, else -1
+        String lower = value.toLowerCase();
+        long scale = lower.endsWith("kb") ? 1024L : lower.endsWith("mb") ? 1024L * 1024 :
+                     lower.endsWith("gb") ? 1024L * 1024 * 1024 : -1L;
+        return (scale != -1L) ? Long.valueOf(lower.substring(0, lower.length() - 2)) * scale : -1L;
+    }
+
+    static TimeUnit getUnit(char c) {
         switch (c) {
             case 'd': return TimeUnit.DAYS;
             case 'h': return TimeUnit.HOURS;
@@ -85,13 +201,31 @@ public class Cache {
         }
     }
 
-    private static void configRedis(Iterator<String> policies) {
-        pool = new JedisPool(new JedisPoolConfig(), System.getenv("BACKREST_REDIS_HOST"));
+    private static void configRedis(Iterator<String> policies, MetricRegistry metrics) {
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(Backrest.intFromEnv("BACKREST_REDIS_POOL_MAX", 16));
+        config.setMaxIdle(config.getMaxTotal());
+        config.setMinIdle(Backrest.intFromEnv("BACKREST_REDIS_POOL_MIN_IDLE", 2));
+        int timeout = Math.toIntExact(Backrest.millisFromEnv("BACKREST_REDIS_POOL_TIMEOUT", "2s"));
+        // bounds both the wait for a pooled connection, and socket operations
+        config.setMaxWaitMillis(timeout);
+        pool = new JedisPool(config, System.getenv("BACKREST_REDIS_HOST"), Protocol.DEFAULT_PORT, timeout);
+        metrics.register(name(Cache.class, "redis", "pool", "active"), (Gauge<Integer>)pool::getNumActive);
+        metrics.register(name(Cache.class, "redis", "pool", "idle"), (Gauge<Integer>)pool::getNumIdle);
+        metrics.register(name(Cache.class, "redis", "pool", "waiting"), (Gauge<Integer>)pool::getNumWaiters);
+        metrics.register(name(Cache.class, "redis", "pool", "meanWaitMs"), (Gauge<Long>)pool::getMeanBorrowWaitTimeMillis);
+        writes = new ArrayBlockingQueue<>(Backrest.intFromEnv("BACKREST_CACHE_WRITE_QUEUE", 1000));
+        metrics.register(name(Cache.class, "redis", "writes", "queued"), (Gauge<Integer>)writes::size);
+        droppedWrites = metrics.meter(name(Cache.class, "redis", "writes", "dropped"));
+        Thread writer = new Thread(Cache::writeBehind, "backrest-cache-writer");
+        writer.setDaemon(true);
+        writer.start();
         // max entries not directly configurable in redis - only total space
         // so use this value * avg doc size of 2k to set maximum memory
         String maxEntries = policies.next();
         if (! isNullOrEmpty(maxEntries)) {
-            String memMax = String.valueOf((Long.valueOf(maxEntries) * 2) / 1000) + "mb";
+            String memMax = (byteSize(maxEntries) != -1L) ? maxEntries.toLowerCase() :
+                            String.valueOf((Long.valueOf(maxEntries) * 2) / 1000) + "mb";
             try (Jedis jedis = pool.getResource()) {
                 jedis.configSet("maxmemory", memMax);
             }
@@ -107,65 +241,348 @@ public class Cache {
         }
     }
 
+    private static void subscribe() {
+        subscriber = new JedisPubSub() {
+            @Override
+            public void onMessage(String channel, String message) {
+                // a tag, or 'flush'
+                if ("flush".equals(message)) {
+                    localCache.invalidateAll();
+                } else {
+                    dropLocal(message);
+                }
+            }
+        };
+        Thread listener = new Thread(() -> {
+            // subscribing blocks this thread (and holds its connection) until unsubscribed
+            while (subscriber != null) {
+                try (Jedis jedis = new Jedis(System.getenv("BACKREST_REDIS_HOST"))) {
+                    jedis.subscribe(subscriber, CHANNEL);
+                } catch (Exception e) {
+                    // invalidations missed while disconnected may leave stale local entries
+                    Backrest.logger.error("Cache invalidation channel lost: {}", e.getMessage());
+                    localCache.invalidateAll();
+                    try {
+                        Thread.sleep(1000L);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }, "backrest-cache-sub");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
     static void shutdownCache() {
+        if (subscriber != null) {
+            JedisPubSub sub = subscriber;
+            subscriber = null;
+            sub.unsubscribe();
+        }
         if (pool != null) pool.destroy();
+        if (localCache != null) {
+            // through the removal listener, so that size and tag index follow
+            localCache.invalidateAll();
+            localCache = null;
+        }
     }
 
-    static void getIfCachable(Request req) {
+    static void getIfCachable(Request req) throws IOException {
         if (cacheable(req)) {
-            String fromCache = get(req);
-            req.attribute("cacheCtl", (fromCache == null) ? "miss" : fromCache);
+            String key = cacheKey(req);
+            req.attribute("cacheKey", key);
+            Entry fromCache = get(key);
+            if (fromCache == null) {
+                fromCache = awaitFlight(req, key);
+            }
+            req.attribute("cacheCtl", (fromCache == null) ? "miss" : "hit");
+            ((fromCache == null) ? misses : hits).mark();
+            req.attribute("cacheEntry", fromCache);
         } else {
             req.attribute("cacheCtl", "none");
         }
     }
 
-    static void remember(Request req, String response) {
+    static OutputStream capture(Request req, OutputStream out) throws IOException {
+        // tee a streamed response into a (bounded) buffer if it is to be cached
         if ("miss".equals((String)req.attribute("cacheCtl"))) {
-            String key = cacheKey(req);
-            if (localCache != null) {
-                localCache.put(key, response);
-                localSize += response.length();
-                //logger.info("wrote to cache: {}", res.body());
-            } else if (pool != null ){
+            Capture capture = new Capture(out, maxDocSize);
+            req.attribute("cacheCapture", capture);
+            return capture;
+        }
+        return out;
+    }
+
+    static void tag(Request req, Object data) {
+        // note the objects a document to be cached will contain
+        if ("miss".equals((String)req.attribute("cacheCtl"))) {
+            Set<String> tags = req.attribute("cacheTags");
+            if (tags == null) {
+                tags = new HashSet<>();
+                req.attribute("cacheTags", tags);
+            }
+            DSpaceObject.tagsOf(data, tags);
+        }
+    }
+
+    static void remember(Request req, Response res, String body) throws IOException {
+        Entry entry = null;
+        try {
+            // only complete, successful responses are cached
+            if ("miss".equals((String)req.attribute("cacheCtl")) && res.raw().getStatus() == 200) {
+                entry = store(req, body);
+            }
+        } finally {
+            // waiting requests get the entry - or build the response themselves
+            land(req, entry);
+        }
+    }
+
+    private static Entry store(Request req, String body) throws IOException {
+        Capture capture = (Capture)req.attribute("cacheCapture");
+        byte[] document = (capture != null) ? capture.captured() : (body != null) ? compress(body) : null;
+        if (document != null) {
+            String etag = (String)req.attribute("etag");
+            Long lastModified = (Long)req.attribute("lastModified");
+            Set<String> tags = req.attribute("cacheTags");
+            Entry entry = new Entry(nullToEmpty(etag), (lastModified != null) ? lastModified : -1L, document);
+            entry.tags = (tags != null) ? tags : new HashSet<>();
+            entry.link = nullToEmpty(req.attribute("link"));
+            put(req.attribute("cacheKey"), entry);
+            return entry;
+        }
+        return null;
+    }
+
+    private static void put(String key, Entry entry) {
+        if (localCache != null) {
+            putLocal(key, entry);
+        }
+        if (pool != null && ! writes.offer(new Write(key, entry))) {
+            // never hold up the response - the document will simply be built again
+            droppedWrites.mark();
+        }
+    }
+
+    static Map<Integer, byte[]> members(Request req, String path, List<Integer> ids) throws IOException {
+        // the cached (uncompressed) documents of the objects in a multi-get, by object id
+        Map<Integer, byte[]> found = new HashMap<>();
+        if (cacheActive()) {
+            List<String> keys = ids.stream().map(id -> memberKey(req, path + id)).collect(Collectors.toList());
+            List<Entry> entries = getAll(keys);
+            for (int i = 0; i < ids.size(); i++) {
+                Entry entry = entries.get(i);
+                if (entry != null) {
+                    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(entry.document))) {
+                        found.put(ids.get(i), ByteStreams.toByteArray(in));
+                    }
+                }
+            }
+            hits.mark(found.size());
+            misses.mark(ids.size() - found.size());
+        }
+        return found;
+    }
+
+    static void putMember(Request req, String path, DSpaceObject data, byte[] document) throws IOException {
+        if (cacheActive() && document.length <= maxDocSize) {
+            Entry entry = new Entry("", -1L, compress(document));
+            DSpaceObject.tagsOf(data, entry.tags);
+            put(memberKey(req, path + data.id), entry);
+        }
+    }
+
+    private static void writeBehind() {
+        List<Write> batch = new ArrayList<>(WRITE_BATCH);
+        while (true) {
+            try {
+                batch.add(writes.take());
+                writes.drainTo(batch, WRITE_BATCH - 1);
                 try (Jedis jedis = pool.getResource()) {
-                    if (jedisExpire != -1) {
-                        jedis.setex(key, jedisExpire, response);
-                    } else {
-                        jedis.set(key, response);
+                    Pipeline pipe = jedis.pipelined();
+                    for (Write write : batch) {
+                        write.queue(pipe);
                     }
+                    pipe.sync();
                 }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // lost writes just mean cache misses
+                Backrest.logger.error("Cache write failed: {}", e.getMessage());
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static Entry awaitFlight(Request req, String key) throws IOException {
+        CompletableFuture<Entry> flight = new CompletableFuture<>();
+        CompletableFuture<Entry> leader = inFlight.putIfAbsent(key, flight);
+        if (leader == null) {
+            // this request will build the document
+            req.attribute("cacheFlight", flight);
+            req.attribute("cacheFlightKey", key);
+            // a leader that landed since our miss may have left the document behind
+            Entry entry;
+            try {
+                entry = (pool != null) ? awaitLock(req, key) : get(key);
+            } catch (IOException | RuntimeException e) {
+                abandon(req, e);
+                throw e;
+            }
+            if (entry != null) {
+                land(req, entry);
+            }
+            return entry;
+        }
+        try {
+            return leader.get(flightWait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // leader presumed lost - let the next miss lead
+            inFlight.remove(key, leader);
+            return null;
+        } catch (InterruptedException | ExecutionException e) {
+            // leader failed (or halted) - build the document without waiting any longer
+            return null;
+        }
+    }
+
+    private static Entry awaitLock(Request req, String key) throws IOException {
+        // a short-lived lock elects one node to build the document
+        String lockKey = "lock:" + key;
+        String token = UUID.randomUUID().toString();
+        try (Jedis jedis = pool.getResource()) {
+            if ("OK".equals(jedis.set(lockKey, token, "NX", "PX", flightWait))) {
+                req.attribute("cacheLock", token);
+                return null;
+            }
+        }
+        // another node holds it - poll for its result
+        long deadline = System.currentTimeMillis() + flightWait;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(LOCK_POLL_MS);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            Entry entry = get(key);
+            if (entry != null) return entry;
+        }
+        return null;
+    }
+
+    static Route landing(Route route) {
+        // a route that halts or throws never reaches the after filter, so its flight is
+        // abandoned here - waiting requests then build the document themselves at once
+        return (req, res) -> {
+            try {
+                return route.handle(req, res);
+            } catch (Throwable t) {
+                abandon(req, t);
+                throw t;
+            }
+        };
+    }
+
+    private static void land(Request req, Entry entry) {
+        CompletableFuture<Entry> flight = release(req);
+        if (flight != null) {
+            flight.complete(entry);
+        }
+    }
+
+    private static void abandon(Request req, Throwable cause) {
+        CompletableFuture<Entry> flight = release(req);
+        if (flight != null) {
+            flight.completeExceptionally(cause);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<Entry> release(Request req) {
+        CompletableFuture<Entry> flight = (CompletableFuture<Entry>)req.attribute("cacheFlight");
+        if (flight != null) {
+            req.attribute("cacheFlight", null);
+            inFlight.remove((String)req.attribute("cacheFlightKey"), flight);
+        }
+        String token = (String)req.attribute("cacheLock");
+        if (token != null) {
+            req.attribute("cacheLock", null);
+            try (Jedis jedis = pool.getResource()) {
+                jedis.eval(UNLOCK_SCRIPT, 1, "lock:" + req.attribute("cacheFlightKey"), token);
             }
         }
+        return flight;
     }
 
     static boolean inCache(Request req) {
-        String status = (String)req.attribute("cacheCtl");
-        return status != null && ! ("miss".equals(status) || "none".equals(status));
+        return "hit".equals((String)req.attribute("cacheCtl"));
     }
 
-    static String fromCache(Request req, Response res) {
+    static String fromCache(Request req, Response res) throws IOException {
         res.type(Backrest.responseContentType(req));
-        return (String)req.attribute("cacheCtl");
+        Entry entry = (Entry)req.attribute("cacheEntry");
+        res.header("Vary", "Accept, Accept-Encoding");
+        if (! entry.etag.isEmpty()) {
+            res.header("ETag", entry.etag);
+        }
+        if (entry.lastModified != -1L) {
+            res.raw().setDateHeader("Last-Modified", entry.lastModified);
+        }
+        if (! entry.link.isEmpty()) {
+            res.header("Link", entry.link);
+        }
+        if (! entry.etag.isEmpty() && Validator.matches(req, entry.etag, entry.lastModified)) {
+            res.status(304);
+            return "";
+        }
+        Timing.report(req, res, -1L);
+        String accepts = req.headers("Accept-Encoding");
+        if (accepts != null && accepts.contains("gzip")) {
+            // send stored bytes untouched
+            res.header("Content-Encoding", "gzip");
+            res.raw().setContentLength(entry.document.length);
+            try (OutputStream out = res.raw().getOutputStream()) {
+                out.write(entry.document);
+            }
+        } else {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(entry.document));
+                 OutputStream out = res.raw().getOutputStream()) {
+                ByteStreams.copy(in, out);
+            }
+        }
+        return "";
     }
 
     static Status cacheStatus() {
-        if (localCache != null) {
-            return new Status(Math.toIntExact(localCache.size()), localSize);
-        } else if (pool != null) {
+        Status status = null;
+        if (pool != null) {
             try (Jedis jedis = pool.getResource()) {
                 String memStats = jedis.info("Memory");
                 String usedStr = new Scanner(memStats).findWithinHorizon("used_memory:(\\d+)", 0);
                 long usedMem = Long.valueOf(usedStr.substring(usedStr.indexOf(":") + 1));
-                return new Status(Math.toIntExact(jedis.dbSize()), usedMem);
+                status = new Status(Math.toIntExact(jedis.dbSize()), usedMem);
             }
+            if (localCache != null) {
+                status.l1Entries = Math.toIntExact(localCache.size());
+                status.l1Size = localSize.get();
+            }
+        } else if (localCache != null) {
+            status = new Status(Math.toIntExact(localCache.size()), localSize.get());
         }
-        return null;
+        if (status != null) {
+            // progress of any warm-up
+            Warmup.report(status);
+        }
+        return status;
     }
 
-    static void cacheControl(String command) {
+    static void cacheControl(String command, String type, String id) {
         switch (command) {
-            case "flush": flush(); break;
+            case "flush": flush(); Warmup.run(); break;
+            case "invalidate": invalidate(type, id); break;
             default: Backrest.logger.info("Unknown cache command: {}", command); break;
         }
     }
@@ -174,50 +591,387 @@ public class Cache {
         return localCache != null || pool != null;
     }
 
-    private static String cacheKey(Request req) {
-        return req.url() + req.queryString() + Backrest.responseContentType(req);
+    static String cacheKey(Request req) {
+        return cacheKey(req.pathInfo(), req.queryMap()::value, Backrest.responseContentType(req));
+    }
+
+    static String cacheKey(String path, Function<String, String> values, String contentType) {
+        return cacheKey(path, KEY_PARAMS, values, contentType);
+    }
+
+    private static String memberKey(Request req, String path) {
+        // multi-get members are kept apart from single object documents, which carry validators
+        return cacheKey(path, MEMBER_KEY_PARAMS, req.queryMap()::value, Backrest.responseContentType(req)) + "-member";
+    }
+
+    private static String cacheKey(String path, List<String> params, Function<String, String> values, String contentType) {
+        // requests for the same representation share a key, however their parameters are written
+        StringBuilder sb = new StringBuilder(path);
+        for (String param : params) {
+            String value = values.apply(param);
+            if (isNullOrEmpty(value) || value.equals(KEY_DEFAULTS.get(param))) continue;
+            // anything but 'true' is not pretty
+            if ("pretty".equals(param) && ! "true".equals(value)) continue;
+            if ("expand".equals(param)) {
+                // only what the document's mapper would expand - as it would read the parameter
+                List<String> canExpand = expandable(path);
+                Set<String> expands = new TreeSet<>(Backrest.toExpandList(value, new ArrayList<>(canExpand)));
+                expands.retainAll(canExpand);
+                value = Joiner.on(",").join(expands);
+                if (value.isEmpty()) continue;
+            }
+            sb.append(sb.indexOf("?") == -1 ? '?' : '&').append(param).append('=').append(value);
+        }
+        sb.append(' ').append(contentType);
+        return BaseEncoding.base64Url().omitPadding()
+                           .encode(Hashing.sha256().hashString(sb, StandardCharsets.UTF_8).asBytes());
+    }
+
+    private static List<String> expandable(String path) {
+        // the expansions of the kind of object the path serves, e.g. '/communities/1/collections' - collections
+        List<String> segments = Splitter.on('/').omitEmptyStrings().splitToList(path);
+        if (segments.isEmpty()) return Collections.emptyList();
+        String kind = segments.get(0);
+        if ("handle".equals(kind)) {
+            DSpaceObject dso = (segments.size() > 2) ? HandleIndex.resolve(segments.get(1) + "/" + segments.get(2)) : null;
+            if (dso == null) {
+                // not indexed, so any of the kinds a handle may name
+                Set<String> expands = new HashSet<>(Item.ItemMapper.EXPANDS);
+                expands.addAll(Collection.CollectionMapper.EXPANDS);
+                expands.addAll(Community.CommunityMapper.EXPANDS);
+                return new ArrayList<>(expands);
+            }
+            kind = dso.type + "s";
+        } else if (segments.size() > 2) {
+            // item metadata and bitstreams, and bitstream policies, ignore expansion
+            kind = segments.get(2);
+        }
+        switch (kind) {
+            case "items": return Item.ItemMapper.EXPANDS;
+            case "collections": return Collection.CollectionMapper.EXPANDS;
+            case "communities": return Community.CommunityMapper.EXPANDS;
+            case "bitstreams": return (segments.size() > 2) ? Collections.emptyList() : Bitstream.BitstreamMapper.EXPANDS;
+            default: return Collections.emptyList();
+        }
     }
 
     private static boolean cacheable(Request req) {
         if (cacheActive()) {
             String path = req.pathInfo();
+            // multi-gets are cached by member instead, and exports are too big to cache
             return (path.contains("items") || path.contains("collections") || path.contains("communities") ||
-                    path.contains("bitstreams") || path.contains("handle")) && ! path.contains("retrieve");
+                    path.contains("bitstreams") || path.contains("handle")) && ! path.contains("retrieve") &&
+                   ! path.endsWith("/export") && req.queryParams("ids") == null;
         }
         return false;
     }
 
-    private static String get(Request req) {
+    private static Entry get(String key) throws IOException {
         // key is request URL + response content type
-        String key = cacheKey(req);
         if (localCache != null) {
-            return localCache.getIfPresent(key);
-        } else if (pool != null) {
+            Entry entry = localCache.getIfPresent(key);
+            if (entry != null || pool == null) return entry;
+        }
+        if (pool != null) {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
             try (Jedis jedis = pool.getResource()) {
-                String value = null;
+                byte[] value = null;
                 if (jedisExpire != -1) {
-                    // have to do as a transaction
-                    Transaction tx = jedis.multi();
-                    redis.clients.jedis.Response<String> resp = tx.get(key);
-                    tx.expire(key, jedisExpire);
-                    tx.exec();
+                    // slide the expiry in the same round trip - atomicity is not needed
+                    Pipeline pipe = jedis.pipelined();
+                    redis.clients.jedis.Response<byte[]> resp = pipe.get(rawKey);
+                    pipe.expire(rawKey, jedisExpire);
+                    pipe.sync();
                     value = resp.get();
                 } else {
-                    value = jedis.get(key);
+                    value = jedis.get(rawKey);
+                }
+                Entry entry = (value != null) ? Entry.fromBytes(value) : null;
+                if (entry != null && localCache != null) {
+                    // read through to the local tier
+                    putLocal(key, entry);
                 }
-                return value;
+                return entry;
             }
         }
         return null;
     }
 
+    private static List<Entry> getAll(List<String> keys) throws IOException {
+        // as get, but with all the redis reads in one round trip
+        Entry[] entries = new Entry[keys.size()];
+        List<Integer> remote = new ArrayList<>();
+        for (int i = 0; i < entries.length; i++) {
+            if (localCache != null) {
+                entries[i] = localCache.getIfPresent(keys.get(i));
+            }
+            if (entries[i] == null && pool != null) {
+                remote.add(i);
+            }
+        }
+        if (! remote.isEmpty()) {
+            byte[][] rawKeys = remote.stream().map(i -> keys.get(i).getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+            try (Jedis jedis = pool.getResource()) {
+                Pipeline pipe = jedis.pipelined();
+                redis.clients.jedis.Response<List<byte[]>> resp = pipe.mget(rawKeys);
+                if (jedisExpire != -1) {
+                    for (byte[] rawKey : rawKeys) {
+                        pipe.expire(rawKey, jedisExpire);
+                    }
+                }
+                pipe.sync();
+                List<byte[]> values = resp.get();
+                for (int j = 0; j < rawKeys.length; j++) {
+                    byte[] value = values.get(j);
+                    Entry entry = (value != null) ? Entry.fromBytes(value) : null;
+                    if (entry != null && localCache != null) {
+                        putLocal(keys.get(remote.get(j)), entry);
+                    }
+                    entries[remote.get(j)] = entry;
+                }
+            }
+        }
+        return Arrays.asList(entries);
+    }
+
+    private static void putLocal(String key, Entry entry) {
+        index(key, entry.tags);
+        localSize.addAndGet(entry.size());
+        localCache.put(key, entry);
+    }
+
+    private static int dropLocal(String tag) {
+        Set<String> keys = tagIndex.remove(tag);
+        if (keys != null) {
+            localCache.invalidateAll(keys);
+            return keys.size();
+        }
+        return 0;
+    }
+
+    private static void index(String key, Set<String> tags) {
+        for (String tag : tags) {
+            tagIndex.compute(tag, (t, keys) -> {
+                Set<String> tagged = (keys != null) ? keys : new HashSet<>();
+                tagged.add(key);
+                return tagged;
+            });
+        }
+    }
+
+    private static void unindex(String key, Set<String> tags) {
+        for (String tag : tags) {
+            tagIndex.computeIfPresent(tag, (t, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    private static byte[] compress(String body) throws IOException {
+        return compress(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] compress(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(body);
+        }
+        return bytes.toByteArray();
+    }
+
     private static void flush() {
+        if (pool != null) {
+            writes.clear();
+            try (Jedis jedis = pool.getResource()) {
+                jedis.flushDB();
+                if (localCache != null) {
+                    jedis.publish(CHANNEL, "flush");
+                }
+            }
+        }
         if (localCache != null) {
+            // removal listener zeroes the size
             localCache.invalidateAll();
-            localSize = 0L;
-        } else if (pool != null) {
+        }
+    }
+
+    static void invalidate(String type, String id) {
+        // drops every document containing the object, and any cached title
+        if (isNullOrEmpty(type) || isNullOrEmpty(id)) {
+            Backrest.logger.info("Cache invalidate needs a type and id");
+            return;
+        }
+        String tag = type + ":" + id;
+        int dropped = 0;
+        if (pool != null) {
             try (Jedis jedis = pool.getResource()) {
-                jedis.flushDB();
+                Set<String> keys = jedis.smembers("tag:" + tag);
+                dropped = keys.size();
+                if (! keys.isEmpty()) {
+                    jedis.del(keys.toArray(new String[keys.size()]));
+                }
+                jedis.del("tag:" + tag);
+                if (localCache != null) {
+                    jedis.publish(CHANNEL, tag);
+                }
+            }
+        }
+        if (localCache != null) {
+            int droppedLocal = dropLocal(tag);
+            if (pool == null) dropped = droppedLocal;
+        }
+        if (stale != null) {
+            stale.mark(dropped);
+        }
+        if ("item".equals(type)) {
+            try {
+                MetadataValue.forgetTitle(Integer.parseInt(id));
+            } catch (NumberFormatException e) {
+                Backrest.logger.info("Cache invalidate of unknown item: {}", id);
+            }
+        }
+    }
+
+    /**
+     * Write is a document queued for storage in redis.
+     */
+    private static class Write {
+
+        final String key;
+        final Entry entry;
+
+        Write(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        void queue(Pipeline pipe) throws IOException {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            if (jedisExpire != -1) {
+                pipe.setex(rawKey, jedisExpire, entry.toBytes());
+            } else {
+                pipe.set(rawKey, entry.toBytes());
+            }
+            for (String tag : entry.tags) {
+                // tag sets outlive the documents they name, which is harmless
+                pipe.sadd("tag:" + tag, key);
+                if (jedisExpire != -1) {
+                    pipe.expire("tag:" + tag, jedisExpire);
+                }
+            }
+        }
+    }
+
+    /**
+     * Entry is a cached response document - gzipped - with its validators.
+     */
+    static class Entry {
+
+        private static final byte FORMAT = 3;
+
+        final String etag;
+        final long lastModified;
+        final byte[] document;
+        Set<String> tags = new HashSet<>();
+        // the 'next' page link of a paged list, if any
+        String link = "";
+
+        Entry(String etag, long lastModified, byte[] document) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.document = document;
+        }
+
+        int size() {
+            return document.length + etag.length() + link.length();
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(document.length + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT);
+            out.writeUTF(etag);
+            out.writeLong(lastModified);
+            out.writeUTF(link);
+            // tags travel with the entry, for the benefit of local tiers
+            out.writeInt(tags.size());
+            for (String tag : tags) {
+                out.writeUTF(tag);
+            }
+            out.write(document);
+            return bytes.toByteArray();
+        }
+
+        static Entry fromBytes(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readByte() != FORMAT) {
+                // written by an earlier version - treat as a miss
+                return null;
+            }
+            String etag = in.readUTF();
+            long lastModified = in.readLong();
+            String link = in.readUTF();
+            Set<String> tags = new HashSet<>();
+            for (int count = in.readInt(); count > 0; count--) {
+                tags.add(in.readUTF());
+            }
+            Entry entry = new Entry(etag, lastModified, ByteStreams.toByteArray(in));
+            entry.tags = tags;
+            entry.link = link;
+            return entry;
+        }
+    }
+
+    /**
+     * Capture passes a response stream through, retaining a compressed copy
+     * unless the response proves too large to cache.
+     */
+    static class Capture extends FilterOutputStream {
+
+        private final int limit;
+        private int count = 0;
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private GZIPOutputStream copy = new GZIPOutputStream(bytes);
+
+        Capture(OutputStream out, int limit) throws IOException {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkLimit(1);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkLimit(len);
+            }
+        }
+
+        byte[] captured() throws IOException {
+            if (copy != null) {
+                copy.finish();
+                return bytes.toByteArray();
+            }
+            return null;
+        }
+
+        private void checkLimit(int len) {
+            // limit applies to the uncompressed document
+            count += len;
+            if (count > limit) {
+                // too big to cache - stop copying
+                copy = null;
+                bytes = null;
             }
         }
     }
@@ -227,6 +981,11 @@ public class Cache {
 
         public int entries;
         public long size;
+        public String warmup;
+        public int warmed;
+        // local tier, when in front of redis
+        public Integer l1Entries;
+        public Long l1Size;
 
         Status() {}
 
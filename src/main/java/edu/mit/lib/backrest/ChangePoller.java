@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.IntegerColumnMapper;
+import org.skife.jdbi.v2.util.LongColumnMapper;
+import org.skife.jdbi.v2.util.TimestampColumnMapper;
+
+/**
+ * ChangePoller watches the DSpace tables for edits, and invalidates just the
+ * cached documents (and titles) they affect, so that long cache retention
+ * need not mean stale data. Each poll looks for items modified since the last
+ * one, and for collection mappings added since then (by row id). Removed
+ * mappings leave no trace but smaller collections: a poll counts all mappings,
+ * and only when the total falls short of the additions seen does it count them
+ * by collection to find the ones that shrank. Since deleting an item removes its
+ * mappings, that is also when the item DBIDs are re-read, to find deleted items.
+ * (Items deleted while never in a collection, as in workflow, go unnoticed.) Newly
+ * bound handles are reported by the handle index as it refreshes. Changed items,
+ * collections and communities are also reported to listeners (e.g. the metadata
+ * index), before any invalidation.
+ *
+ * @author richardrodgers
+ */
+public class ChangePoller {
+
+    private static final String ITEM_QUERY =
+        "select item_id, owning_collection, last_modified from item where last_modified >= ?";
+    private static final String MAPPING_QUERY =
+        "select id, collection_id, item_id from collection2item where id > ?";
+    private static final String TOTAL_QUERY = "select count(*) from collection2item";
+    private static final String SIZE_QUERY =
+        "select collection_id, count(*) as items from collection2item group by collection_id";
+    private static final String ID_QUERY = "select item_id from item";
+
+    /**
+     * Listener is told of the objects changed (or deleted) since the last poll.
+     */
+    interface Listener {
+        void changed(Set<Integer> items, Set<Integer> collections, Set<Integer> communities);
+    }
+
+    // poll watermarks - with the items already seen at the last modification time,
+    // since more may yet be modified within the same clock tick
+    private static Timestamp lastModified;
+    private static Set<Integer> seenAtLast = new HashSet<>();
+    private static int lastMappingId = -1;
+    private static Map<Integer, Integer> collectionSizes = new HashMap<>();
+    private static long mappingCount;
+    // DBIDs of all items, as of the last removal seen
+    private static BitSet itemIds = new BitSet();
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    static void mark(DBI dbi) {
+        // sets the watermarks - taken before any slow load that later polls must catch up on
+        try (Handle hdl = dbi.open()) {
+            lastModified = hdl.createQuery("select max(last_modified) from item")
+                              .map(TimestampColumnMapper.INSTANCE).first();
+            Integer maxId = hdl.createQuery("select max(id) from collection2item")
+                               .map(IntegerColumnMapper.WRAPPER).first();
+            lastMappingId = (maxId != null) ? maxId : -1;
+            modifiedItems(hdl);
+            collectionSizes = collectionSizes(hdl);
+            mappingCount = collectionSizes.values().stream().mapToLong(Integer::longValue).sum();
+            itemIds = itemIds(hdl);
+        }
+    }
+
+    static void start(DBI dbi, long period) {
+        // polls from the watermarks set by mark
+        HandleIndex.onChange((resType, resId) -> {
+            if (resType == Community.TYPE) {
+                // the index holds community representations, handle included
+                try (Handle hdl = dbi.open()) {
+                    Hierarchy.refresh(hdl, Collections.singleton(resId));
+                }
+            }
+            invalidate(ResourcePolicy.typeId2type(resType), resId);
+        });
+        Backrest.refreshEvery("change poll", period, () -> poll(dbi));
+    }
+
+    static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    static synchronized void poll(DBI dbi) {
+        try (Handle hdl = dbi.open()) {
+            Set<Integer> items = new HashSet<>();
+            Set<Integer> collections = new HashSet<>();
+            for (ItemRow row : modifiedItems(hdl)) {
+                items.add(row.itemId);
+                itemIds.set(row.itemId);
+                if (row.owningCollection != -1) collections.add(row.owningCollection);
+            }
+            List<int[]> mappings = hdl.createQuery(MAPPING_QUERY).bind(0, lastMappingId)
+                                      .map((index, rs, ctx) -> new int[] { rs.getInt("id"), rs.getInt("collection_id"), rs.getInt("item_id") })
+                                      .list();
+            for (int[] mapping : mappings) {
+                lastMappingId = Math.max(lastMappingId, mapping[0]);
+                collections.add(mapping[1]);
+                items.add(mapping[2]);
+                itemIds.set(mapping[2]);
+            }
+            long total = hdl.createQuery(TOTAL_QUERY).map(LongColumnMapper.PRIMITIVE).first();
+            if (total != mappingCount + mappings.size()) {
+                // some mappings were removed - the costly per-collection count finds where
+                Map<Integer, Integer> sizes = collectionSizes(hdl);
+                for (Integer collId : union(sizes.keySet(), collectionSizes.keySet())) {
+                    if (! sizes.getOrDefault(collId, 0).equals(collectionSizes.getOrDefault(collId, 0))) {
+                        collections.add(collId);
+                    }
+                }
+                collectionSizes = sizes;
+                // and any deleted items among them
+                BitSet current = itemIds(hdl);
+                BitSet deleted = (BitSet)itemIds.clone();
+                deleted.andNot(current);
+                deleted.stream().forEach(items::add);
+                itemIds = current;
+            } else {
+                mappings.forEach(mapping -> collectionSizes.merge(mapping[1], 1, Integer::sum));
+            }
+            mappingCount = total;
+            // community item counts include the collection's
+            Set<Integer> communities = new HashSet<>();
+            collections.forEach(collId -> communities.addAll(Hierarchy.collectionAncestors(collId)));
+            if (items.size() + collections.size() > 0) {
+                listeners.forEach(listener -> listener.changed(items, collections, communities));
+            }
+            items.forEach(itemId -> invalidate("item", itemId));
+            // the hierarchy index holds the counts that communities are served with, so is brought up to date first
+            Hierarchy.refresh(hdl, communities);
+            collections.forEach(collId -> invalidate("collection", collId));
+            communities.forEach(commId -> invalidate("community", commId));
+            if (items.size() + collections.size() > 0) {
+                Backrest.logger.info("Change poll invalidated {} items, {} collections", items.size(), collections.size());
+            }
+        }
+    }
+
+    private static List<ItemRow> modifiedItems(Handle hdl) {
+        // advances the watermark past the rows returned
+        Timestamp since = (lastModified != null) ? lastModified : new Timestamp(0L);
+        List<ItemRow> rows = hdl.createQuery(ITEM_QUERY).bind(0, since)
+                                .map((index, rs, ctx) -> new ItemRow(rs)).list();
+        // those seen at the old watermark, which a newer row may replace before they are all passed
+        Set<Integer> seen = seenAtLast;
+        List<ItemRow> modified = new ArrayList<>();
+        for (ItemRow row : rows) {
+            if (row.lastModified.equals(since) && seen.contains(row.itemId)) continue;
+            modified.add(row);
+            if (lastModified == null || row.lastModified.after(lastModified)) {
+                lastModified = row.lastModified;
+                seenAtLast = new HashSet<>();
+            }
+        }
+        for (ItemRow row : modified) {
+            if (row.lastModified.equals(lastModified)) seenAtLast.add(row.itemId);
+        }
+        return modified;
+    }
+
+    private static Map<Integer, Integer> collectionSizes(Handle hdl) {
+        Map<Integer, Integer> sizes = new HashMap<>();
+        List<int[]> rows = hdl.createQuery(SIZE_QUERY)
+                              .map((index, rs, ctx) -> new int[] { rs.getInt("collection_id"), rs.getInt("items") })
+                              .list();
+        rows.forEach(row -> sizes.put(row[0], row[1]));
+        return sizes;
+    }
+
+    private static BitSet itemIds(Handle hdl) {
+        BitSet ids = new BitSet();
+        hdl.createQuery(ID_QUERY).map(IntegerColumnMapper.PRIMITIVE).list().forEach(ids::set);
+        return ids;
+    }
+
+    private static Set<Integer> union(Set<Integer> a, Set<Integer> b) {
+        Set<Integer> all = new HashSet<>(a);
+        all.addAll(b);
+        return all;
+    }
+
+    private static void invalidate(String type, int id) {
+        Cache.invalidate(type, String.valueOf(id));
+    }
+
+    private static class ItemRow {
+        final int itemId;
+        final int owningCollection;
+        final Timestamp lastModified;
+
+        ItemRow(ResultSet rs) throws SQLException {
+            itemId = rs.getInt("item_id");
+            int collId = rs.getInt("owning_collection");
+            // items in workflow have no owner yet
+            owningCollection = rs.wasNull() ? -1 : collId;
+            lastModified = rs.getTimestamp("last_modified");
+        }
+    }
+}
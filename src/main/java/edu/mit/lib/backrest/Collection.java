@@ -6,13 +6,18 @@ package edu.mit.lib.backrest;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.Query;
@@ -22,6 +27,8 @@ import org.skife.jdbi.v2.util.IntegerColumnMapper;
 
 import spark.QueryParamsMap;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Collection is a RESTful representation of a DSpace collection
  *
@@ -43,6 +50,9 @@ public class Collection extends DSpaceObject {
     public List<Item> items;
     public String license;
     public Bitstream logo;
+    @JsonIgnore
+    @XmlTransient
+    public int logoId;
 
     // JAXB needs
     Collection() {}
@@ -64,43 +74,96 @@ public class Collection extends DSpaceObject {
         this.logo = logo;
     }
 
+    @Override
+    void addTags(Set<String> tags) {
+        super.addTags(tags);
+        tagsOf(parentCommunity, tags);
+        tagsOf(parentCommunityList, tags);
+        tagsOf(items, tags);
+        tagsOf(logo, tags);
+    }
+
     static List<Collection> findAll(Handle hdl, QueryParamsMap params) {
         String queryString = SELECT + "order by name limit ? offset ?";
         int limit = Backrest.limitFromParam(params);
         int offset = Backrest.offsetFromParam(params);
-        return hdl.createQuery(queryString)
-                  .bind(0, limit).bind(1, offset)
-                  .map(new CollectionMapper(hdl, null)).list();
+        CollectionMapper mapper = new CollectionMapper(null);
+        return mapper.expand(hdl, hdl.createQuery(queryString)
+                                     .bind(0, limit).bind(1, offset)
+                                     .map(mapper).list());
     }
 
     static List<Collection> findByComm(Handle hdl, int commId, QueryParamsMap params) {
         String queryString = "select collection.* from collection, community2collection " +
             "where community2collection.collection_id=collection.collection_id " +
             "and community2collection.community_id= ? order by collection.name";
-        return hdl.createQuery(queryString)
-                  .bind(0, commId)
-                  .map(new CollectionMapper(hdl, params)).list();
+        CollectionMapper mapper = new CollectionMapper(params);
+        return mapper.expand(hdl, hdl.createQuery(queryString)
+                                     .bind(0, commId)
+                                     .map(mapper).list());
     }
 
     static List<Collection> findByChild(Handle hdl, int itemId) {
         String queryString = "select collection.* from collection, collection2item " +
             "where collection2item.collection_id=collection.collection_id " +
             "and collection2item.item_id= ?";
-        return hdl.createQuery(queryString)
-                  .bind(0, itemId)
-                  .map(new CollectionMapper(hdl, null)).list();
+        CollectionMapper mapper = new CollectionMapper(null);
+        return mapper.expand(hdl, hdl.createQuery(queryString)
+                                     .bind(0, itemId)
+                                     .map(mapper).list());
+    }
+
+    static Map<Integer, List<Collection>> findByChildren(Handle hdl, List<Integer> itemIds) {
+        String queryString = "select collection_id, item_id from collection2item " +
+            "where item_id in (" + DSpaceObject.idList(itemIds) + ")";
+        List<SimpleEntry<Integer, Integer>> links = hdl.createQuery(queryString)
+                  .map((index, rs, ctx) -> new SimpleEntry<>(rs.getInt("item_id"), rs.getInt("collection_id")))
+                  .list();
+        Map<Integer, Collection> colls = findByIds(hdl, links.stream().map(l -> l.getValue())
+                                                             .distinct().collect(Collectors.toList()), null)
+                                        .stream().collect(Collectors.toMap(c -> c.id, c -> c));
+        return links.stream().filter(l -> colls.containsKey(l.getValue()))
+                    .collect(Collectors.groupingBy(l -> l.getKey(),
+                             Collectors.mapping(l -> colls.get(l.getValue()), Collectors.toList())));
+    }
+
+    static List<Collection> findByIds(Handle hdl, List<Integer> collIds, QueryParamsMap params) {
+        // a multi-get is not paged, and expanded items are always the first page, so that a
+        // collection has the same representation in any multi-get (and may be cached by member)
+        CollectionMapper mapper = new CollectionMapper(params, Backrest.limitFromParam(null), Backrest.offsetFromParam(null));
+        return mapper.expand(hdl, hdl.createQuery(SELECT + "where collection_id in (" + DSpaceObject.idList(collIds) + ")")
+                                     .map(mapper).list());
     }
 
     static Collection findById(Handle hdl, int collId, QueryParamsMap params) {
+        CollectionMapper mapper = new CollectionMapper(params);
+        return mapper.expand(hdl, hdl.createQuery(SELECT + "where collection_id = ?")
+                                     .bind(0, collId)
+                                     .map(mapper).first());
+    }
+
+    static Validator validator(Handle hdl, int collId) {
+        // collection data, parent communities and item count - what an unexpanded document shows,
+        // read without touching the (possibly very many) member items
+        int[] count = { itemCount(hdl, collId) };
         return hdl.createQuery(SELECT + "where collection_id = ?")
                   .bind(0, collId)
-                  .map(new CollectionMapper(hdl, params)).first();
+                  .map((index, rs, ctx) -> Validator.ofRow(rs, null, Hierarchy.owners(collId), count))
+                  .first();
     }
 
     static Collection withLogo(Handle hdl, int bsId) {
-        return hdl.createQuery("select * from collection where logo_bitstream_id = ?")
-                  .bind(0, bsId)
-                  .map(new CollectionMapper(hdl, null)).first();
+        CollectionMapper mapper = new CollectionMapper(null);
+        return mapper.expand(hdl, hdl.createQuery(SELECT + "where logo_bitstream_id = ?")
+                                     .bind(0, bsId)
+                                     .map(mapper).first());
+    }
+
+    static Map<Integer, Collection> withLogos(Handle hdl, List<Integer> bsIds) {
+        CollectionMapper mapper = new CollectionMapper(null);
+        return mapper.expand(hdl, hdl.createQuery(SELECT + "where logo_bitstream_id in (" + DSpaceObject.idList(bsIds) + ")")
+                                     .map(mapper).list())
+                     .stream().collect(Collectors.toMap(c -> c.logoId, c -> c));
     }
 
     static int itemCount(Handle hdl, int collId) {
@@ -111,43 +174,85 @@ public class Collection extends DSpaceObject {
         return (cnt != null) ? cnt.intValue() : 0;
     }
 
+    static Map<Integer, Integer> itemCounts(Handle hdl, List<Integer> collIds) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        if (Backrest.version < 15 || Backrest.version == 40) return counts; // counts added in 1.5
+        hdl.createQuery("select collection_id, count from collection_item_count " +
+                        "where collection_id in (" + DSpaceObject.idList(collIds) + ")")
+           .map((index, rs, ctx) -> new SimpleEntry<>(rs.getInt("collection_id"), rs.getInt("count")))
+           .list().forEach(e -> counts.put(e.getKey(), e.getValue()));
+        return counts;
+    }
+
+    /**
+     * CollectionMapper maps only the collection row itself: expansions (and the handle
+     * and item count) are loaded afterwards for all the rows at once, as ItemMapper does.
+     */
     static class CollectionMapper implements ResultSetMapper<Collection> {
 
-        private final List<String> canExpand = new ArrayList<String>(Arrays.asList("parentCommunityList", "parentCommunity", "items", "license", "logo", "all"));
+        static final List<String> EXPANDS = Arrays.asList("parentCommunityList", "parentCommunity", "items", "license", "logo", "all");
+        private final List<String> canExpand = new ArrayList<String>(EXPANDS);
         private final List<String> toExpand;
-        private final Handle hdl;
         private final int limit;
         private final int offset;
 
-        public CollectionMapper(Handle hdl, QueryParamsMap params) {
-            this.hdl = hdl;
+        public CollectionMapper(QueryParamsMap params) {
+            this(params, Backrest.limitFromParam(params), Backrest.offsetFromParam(params));
+        }
+
+        public CollectionMapper(QueryParamsMap params, int limit, int offset) {
             this.toExpand = Backrest.toExpandList(params, canExpand);
-            this.limit = Backrest.limitFromParam(params);
-            this.offset = Backrest.offsetFromParam(params);
+            this.limit = limit;
+            this.offset = offset;
         }
 
         @Override
         public Collection map(int index, ResultSet rs, StatementContext ctx) throws SQLException {
-            int collId = rs.getInt("collection_id");
-            Community parent = null;
-            List<Community> parents = new ArrayList<>();
-            List<Item> items = new ArrayList<>();
-            String license = null;
-            Bitstream logo = null;
+            Collection coll = new Collection(rs.getInt("collection_id"), rs.getString("name"), null,
+                                  rs.getString("short_description"), rs.getString("introductory_text"),
+                                  rs.getString("copyright_text"), rs.getString("side_bar_text"),
+                                  0, null, new ArrayList<>(), new ArrayList<>(),
+                                  toExpand.contains("license") ? rs.getString("license") : null, null, canExpand);
+            coll.logoId = rs.getInt("logo_bitstream_id");
+            return coll;
+        }
+
+        Collection expand(Handle hdl, Collection coll) {
+            if (coll != null) {
+                expand(hdl, Arrays.asList(coll));
+            }
+            return coll;
+        }
+
+        List<Collection> expand(Handle hdl, List<Collection> colls) {
+            if (colls.isEmpty()) return colls;
+            List<Integer> collIds = colls.stream().map(c -> c.id).collect(Collectors.toList());
+            // one query per expansion type for all the rows - parent communities come from the index
+            Map<Integer, List<Item>> items = null;
+            Map<Integer, Bitstream> logos = null;
             for (String expand : toExpand) {
                 switch (expand) {
-                    case "parentCommunityList": parents = Community.findAllByColl(hdl, collId); break;
-                    case "parentCommunity": parent = Community.findByColl(hdl, collId).get(0); break;
-                    case "items": items = Item.findByColl(hdl, collId, null, limit, offset); break;
-                    case "license": license = rs.getString("license"); break;
-                    case "logo": logo = Bitstream.findById(hdl, rs.getInt("logo_bitstream_id"), null); break;
+                    case "items": items = Item.findByColls(hdl, collIds, limit, offset); break;
+                    case "logo": logos = Bitstream.findByIds(hdl, colls.stream().map(c -> c.logoId)
+                                                                   .distinct().collect(Collectors.toList()), null)
+                                                  .stream().collect(Collectors.toMap(b -> b.id, b -> b)); break;
                     default: break;
                 }
             }
-            return new Collection(collId, rs.getString("name"), DSpaceObject.handleFor(hdl, TYPE, collId),
-                                  rs.getString("short_description"), rs.getString("introductory_text"),
-                                  rs.getString("copyright_text"), rs.getString("side_bar_text"),
-                                  itemCount(hdl, collId), parent, parents, items, license, logo, canExpand);
+            Map<Integer, String> handles = DSpaceObject.handlesFor(hdl, TYPE, collIds);
+            Map<Integer, Integer> counts = itemCounts(hdl, collIds);
+            for (Collection coll : colls) {
+                coll.handle = handles.get(coll.id);
+                coll.numberItems = counts.getOrDefault(coll.id, 0);
+                if (toExpand.contains("parentCommunityList")) coll.parentCommunityList = Community.findAllByColl(hdl, coll.id);
+                if (toExpand.contains("parentCommunity")) {
+                    List<Community> owners = Community.findByColl(hdl, coll.id);
+                    coll.parentCommunity = owners.isEmpty() ? null : owners.get(0);
+                }
+                if (items != null) coll.items = items.getOrDefault(coll.id, new ArrayList<>());
+                if (logos != null) coll.logo = logos.get(coll.logoId);
+            }
+            return colls;
         }
     }
 
@@ -6,9 +6,19 @@ package edu.mit.lib.backrest;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.text.Collator;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -20,6 +30,8 @@ import org.skife.jdbi.v2.util.IntegerColumnMapper;
 
 import spark.QueryParamsMap;
 
+import static com.google.common.base.Strings.*;
+
 /**
  * Community is a RESTful representation of a DSpace Community
  *
@@ -30,7 +42,6 @@ public class Community extends DSpaceObject {
 
     public static final int TYPE = 4;
     public static final String SELECT = "select * from community ";
-    public static final String ONLY_TOP = "where not community_id in (select child_comm_id from community2community) ";
 
     public String shortDescription;
     public String introductoryText;
@@ -61,20 +72,37 @@ public class Community extends DSpaceObject {
         this.logo = logo;
     }
 
+    @Override
+    void addTags(Set<String> tags) {
+        super.addTags(tags);
+        tagsOf(parentCommunity, tags);
+        tagsOf(collections, tags);
+        tagsOf(subCommunities, tags);
+        tagsOf(logo, tags);
+    }
+
     static List<Community> findAll(Handle hdl, boolean topOnly, QueryParamsMap params) {
+        int limit = Backrest.limitFromParam(params);
+        int offset = Backrest.offsetFromParam(params);
+        if (topOnly && ! expanding(params)) {
+            // served entirely from the hierarchy index
+            return byName(fromIndex(hdl, Hierarchy.topCommunities())).stream()
+                         .skip(offset).limit(limit).collect(Collectors.toList());
+        }
         String queryString = SELECT;
         if (topOnly) {
-            queryString += ONLY_TOP;
+            queryString += "where community_id in (" + DSpaceObject.idList(ids(Hierarchy.topCommunities())) + ") ";
         }
         queryString += "order by name limit ? offset ?";
-        int limit = Backrest.limitFromParam(params);
-        int offset = Backrest.offsetFromParam(params);
         return hdl.createQuery(queryString)
                   .bind(0, limit).bind(1, offset)
                   .map(new CommunityMapper(hdl, params)).list();
     }
 
     static List<Community> findSubs(Handle hdl, int commId, QueryParamsMap params) {
+        if (! expanding(params)) {
+            return byName(fromIndex(hdl, Hierarchy.subCommunities(commId)));
+        }
         String queryString = "select community.* from community, community2community " +
                 "where community2community.child_comm_id=community.community_id " +
                 "and community2community.parent_comm_id= ? ORDER BY community.name";
@@ -84,43 +112,27 @@ public class Community extends DSpaceObject {
     }
 
     static List<Community> findByItem(Handle hdl, int itemId) {
-        String queryString = "select community.* from community, community2collection as c2c, collection2item as c2i " +
-               "where community.community_id = c2c.community_id " +
-               "and c2c.collection_id = c2i.collection_id " +
-               "and c2i.item_id = ?";
-        List<Community> results = hdl.createQuery(queryString)
-                                     .bind(0, itemId)
-                                     .map(new CommunityMapper(hdl, null)).list();
-        ArrayList<Community> allResults = new ArrayList<>(results);
-        for (Community comm : results) {
-            addUniqueParents(allResults, findParents(hdl, new ArrayList<Community>(), comm.id));
-        }
-        return allResults;
+        List<Community> results = findByItems(hdl, Arrays.asList(itemId)).get(itemId);
+        return (results != null) ? results : new ArrayList<>();
     }
 
-    private static void addUniqueParents(List<Community> acc, List<Community> parents) {
-        for (Community parent : parents) {
-            boolean exists = false;
-            for (Community comm : acc) {
-                if (comm.id == parent.id) {
-                    exists = true;
-                    break;
-                }
-            }
-            if (! exists) {
-                acc.add(parent);
-            }
+    static Map<Integer, List<Community>> findByItems(Handle hdl, List<Integer> itemIds) {
+        String queryString = "select collection_id, item_id from collection2item " +
+               "where item_id in (" + DSpaceObject.idList(itemIds) + ")";
+        List<SimpleEntry<Integer, Integer>> links = hdl.createQuery(queryString)
+               .map((index, rs, ctx) -> new SimpleEntry<>(rs.getInt("item_id"), rs.getInt("collection_id")))
+               .list();
+        // collect each item's communities (and their ancestors) without duplicates
+        Map<Integer, Set<Integer>> commIds = new HashMap<>();
+        for (SimpleEntry<Integer, Integer> link : links) {
+            commIds.computeIfAbsent(link.getKey(), k -> new LinkedHashSet<>())
+                   .addAll(Hierarchy.collectionAncestors(link.getValue()));
         }
-    }
-
-    private static List<Community> findParents(Handle hdl, List<Community> parents, int commId) {
-        Community parent = findByChild(hdl, commId);
-        if (parent == null) {
-            return parents;
-        } else {
-            parents.add(parent);
-            return findParents(hdl, parents, parent.id);
+        Map<Integer, List<Community>> results = new HashMap<>();
+        for (Map.Entry<Integer, Set<Integer>> entry : commIds.entrySet()) {
+            results.put(entry.getKey(), fromIndex(hdl, entry.getValue()));
         }
+        return results;
     }
 
     static Community findById(Handle hdl, int commId, QueryParamsMap params) {
@@ -129,31 +141,80 @@ public class Community extends DSpaceObject {
                   .map(new CommunityMapper(hdl, params)).first();
     }
 
+    static Validator validator(Handle hdl, int commId) {
+        // community data, hierarchy links and item count - read without touching any member item
+        int[] count = { itemCount(hdl, commId) };
+        return hdl.createQuery(SELECT + "where community_id = ?")
+                  .bind(0, commId)
+                  .map((index, rs, ctx) -> Validator.ofRow(rs, null, Hierarchy.parents(commId),
+                       Hierarchy.subCommunities(commId), Hierarchy.collections(commId), count))
+                  .first();
+    }
+
+    static Validator collectionsValidator(Handle hdl, int commId) {
+        // the list shows the collection rows and counts, which change without touching the community
+        Validator validator = validator(hdl, commId);
+        List<Integer> collIds = ids(Hierarchy.collections(commId));
+        return (validator != null) ? validator.and(hdl, Collection.SELECT + "where collection_id in (" +
+                                                   DSpaceObject.idList(collIds) + ") order by collection_id")
+                                              .and(new TreeMap<>(Collection.itemCounts(hdl, collIds)).toString())
+                                   : null;
+    }
+
+    static Validator subCommunitiesValidator(Handle hdl, int commId) {
+        // likewise the sub-community rows
+        Validator validator = validator(hdl, commId);
+        return (validator != null) ? validator.and(hdl, SELECT + "where community_id in (" +
+                                                   DSpaceObject.idList(ids(Hierarchy.subCommunities(commId))) +
+                                                   ") order by community_id")
+                                   : null;
+    }
+
     static Community findByChild(Handle hdl, int childId) {
-        String queryString = "select community.* from community, community2community as c2c " +
-               "where community.community_id = c2c.parent_comm_id " +
-               "and c2c.child_comm_id= ?";
-        return hdl.createQuery(queryString)
-                  .bind(0, childId)
-                  .map(new CommunityMapper(hdl, null)).first();
+        int[] parents = Hierarchy.parents(childId);
+        return (parents.length > 0) ? fromIndex(hdl, parents[0]) : null;
     }
 
     static List<Community> findByColl(Handle hdl, int collId) {
-        String queryString = "select community.* from community, community2collection as c2c " +
-               "where community.community_id = c2c.community_id " +
-               "and c2c.collection_id = ?";
-        return hdl.createQuery(queryString)
-                  .bind(0, collId)
-                  .map(new CommunityMapper(hdl, null)).list();
+        return fromIndex(hdl, Hierarchy.owners(collId));
     }
 
     static List<Community> findAllByColl(Handle hdl, int collId) {
-        List<Community> results = findByColl(hdl, collId);
-        ArrayList<Community> allResults = new ArrayList<>(results);
-        for (Community comm : results) {
-            addUniqueParents(allResults, findParents(hdl, new ArrayList<Community>(), comm.id));
+        return fromIndex(hdl, Hierarchy.collectionAncestors(collId));
+    }
+
+    private static boolean expanding(QueryParamsMap params) {
+        return params != null && ! isNullOrEmpty(params.value("expand"));
+    }
+
+    private static List<Integer> ids(int[] commIds) {
+        return Arrays.stream(commIds).boxed().collect(Collectors.toList());
+    }
+
+    private static List<Community> byName(List<Community> comms) {
+        // ordered as the DB would (by collation, not code point), so that paging matches the query path
+        Collator collator = Collator.getInstance(Locale.ROOT);
+        comms.sort(Comparator.comparing((Community c) -> c.name, Comparator.nullsLast(collator)));
+        return comms;
+    }
+
+    private static List<Community> fromIndex(Handle hdl, int[] commIds) {
+        return fromIndex(hdl, ids(commIds));
+    }
+
+    private static List<Community> fromIndex(Handle hdl, Iterable<Integer> commIds) {
+        List<Community> comms = new ArrayList<>();
+        for (int commId : commIds) {
+            Community comm = fromIndex(hdl, commId);
+            if (comm != null) comms.add(comm);
         }
-        return allResults;
+        return comms;
+    }
+
+    private static Community fromIndex(Handle hdl, int commId) {
+        // the index holds unexpanded communities - but may predate a new one
+        Community comm = Hierarchy.community(commId);
+        return (comm != null) ? comm : findById(hdl, commId, null);
     }
 
     static Community withLogo(Handle hdl, int bsId) {
@@ -162,6 +223,20 @@ public class Community extends DSpaceObject {
                   .map(new CommunityMapper(hdl, null)).first();
     }
 
+    static Map<Integer, Community> withLogos(Handle hdl, List<Integer> bsIds) {
+        // only the logo links need be read - the communities come from the index
+        String queryString = "select community_id, logo_bitstream_id from community " +
+                             "where logo_bitstream_id in (" + DSpaceObject.idList(bsIds) + ")";
+        Map<Integer, Community> comms = new HashMap<>();
+        hdl.createQuery(queryString)
+           .map((index, rs, ctx) -> new SimpleEntry<>(rs.getInt("logo_bitstream_id"), rs.getInt("community_id")))
+           .list().forEach(l -> {
+               Community comm = fromIndex(hdl, l.getValue());
+               if (comm != null) comms.put(l.getKey(), comm);
+           });
+        return comms;
+    }
+
     static int itemCount(Handle hdl, int commId) {
         if (Backrest.version < 15 || Backrest.version == 40) return 0; // counts added in 1.5
         Integer cnt = hdl.createQuery("select count from community_item_count where community_id = ?")
@@ -172,7 +247,8 @@ public class Community extends DSpaceObject {
 
     static class CommunityMapper implements ResultSetMapper<Community> {
 
-        private final List<String> canExpand = new ArrayList<String>(Arrays.asList("parentCommunity", "collections", "subCommunities", "logo", "all"));
+        static final List<String> EXPANDS = Arrays.asList("parentCommunity", "collections", "subCommunities", "logo", "all");
+        private final List<String> canExpand = new ArrayList<String>(EXPANDS);
         private final List<String> toExpand;
         private final Handle hdl;
 
@@ -6,8 +6,13 @@ package edu.mit.lib.backrest;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -46,6 +51,21 @@ public class DSpaceObject {
         this.expand = expand;
     }
 
+    void addTags(Set<String> tags) {
+        // a tag names each object whose data appears in a representation
+        tags.add(type + ":" + id);
+    }
+
+    static void tagsOf(Object data, Set<String> tags) {
+        if (data instanceof DSpaceObject) {
+            ((DSpaceObject)data).addTags(tags);
+        } else if (data instanceof Iterable) {
+            for (Object member : (Iterable<?>)data) {
+                tagsOf(member, tags);
+            }
+        }
+    }
+
     static DSpaceObject findByBitstream(Handle hdl, int bsId) {
         // try item, collection, community in that order (likelihood)
         DSpaceObject dso = Item.findByChild(hdl, bsId);
@@ -57,14 +77,66 @@ public class DSpaceObject {
         }
     }
 
+    static Map<Integer, DSpaceObject> findByBitstreams(Handle hdl, List<Integer> bsIds) {
+        // as above, but one query per parent type for all the bitstreams
+        Map<Integer, DSpaceObject> parents = new HashMap<>(Item.findByChildren(hdl, bsIds));
+        List<Integer> logos = bsIds.stream().filter(id -> ! parents.containsKey(id)).collect(Collectors.toList());
+        if (logos.size() > 0) {
+            parents.putAll(Collection.withLogos(hdl, logos));
+            logos.removeIf(parents::containsKey);
+            if (logos.size() > 0) {
+                parents.putAll(Community.withLogos(hdl, logos));
+            }
+        }
+        return parents;
+    }
+
     static String handleFor(Handle hdl, int resType, int resId) {
+        String handle = HandleIndex.handle(resType, resId);
+        if (handle != null) return handle;
+        // not yet indexed
         return hdl.createQuery("select handle from handle where resource_type_id = ? and resource_id = ?")
                   .bind(0, resType).bind(1, resId)
                   .map(StringMapper.FIRST)
                   .first();
     }
 
+    static Map<Integer, String> handlesFor(Handle hdl, int resType, List<Integer> resIds) {
+        Map<Integer, String> handles = new HashMap<>();
+        List<Integer> misses = new ArrayList<>();
+        for (Integer resId : resIds) {
+            String handle = HandleIndex.handle(resType, resId);
+            if (handle != null) {
+                handles.put(resId, handle);
+            } else {
+                misses.add(resId);
+            }
+        }
+        if (misses.size() > 0) {
+            String queryString = "select resource_id, handle from handle where resource_type_id = ? " +
+                                 "and resource_id in (" + idList(misses) + ")";
+            hdl.createQuery(queryString)
+               .bind(0, resType)
+               .map((index, rs, ctx) -> new SimpleEntry<>(rs.getInt("resource_id"), rs.getString("handle")))
+               .list().forEach(e -> handles.putIfAbsent(e.getKey(), e.getValue()));
+        }
+        return handles;
+    }
+
+    static String idList(Iterable<Integer> ids) {
+        // DB IDs are integers, so safe to inline in an 'in' clause
+        StringBuilder sb = new StringBuilder();
+        for (Integer id : ids) {
+            if (sb.length() > 0) sb.append(",");
+            sb.append(id);
+        }
+        // an empty list is not legal SQL, but no DB ID is negative
+        return (sb.length() > 0) ? sb.toString() : "-1";
+    }
+
     static DSpaceObject findByHandle(Handle hdl, String cnriHandle) {
+        DSpaceObject dso = HandleIndex.resolve(cnriHandle);
+        if (dso != null) return dso;
         return hdl.createQuery("select handle,resource_id,resource_type_id from handle where handle = ?")
                   .bind(0, cnriHandle)
                   .map(new DSOMapper()).first();
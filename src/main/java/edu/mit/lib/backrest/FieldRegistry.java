@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * FieldRegistry holds the DSpace metadata field registry in memory, so that
+ * field names and DBIDs may be resolved without DB access. The whole registry
+ * is loaded in one query, and published as an immutable snapshot, which is
+ * replaced wholesale on each (periodic) refresh. Readers therefore never lock.
+ *
+ * @author richardrodgers
+ */
+public class FieldRegistry {
+
+    private static final String REGISTRY_QUERY =
+        "select f.metadata_field_id, s.short_id, f.element, f.qualifier " +
+        "from metadatafieldregistry f, metadataschemaregistry s " +
+        "where f.metadata_schema_id = s.metadata_schema_id";
+
+    private static volatile Snapshot snapshot = new Snapshot(new String[0], ImmutableMap.of());
+
+    static void load(DBI dbi) {
+        refresh(dbi);
+        Backrest.refreshEvery("field registry", () -> refresh(dbi));
+    }
+
+    static void refresh(DBI dbi) {
+        try (Handle hdl = dbi.open()) {
+            refresh(hdl);
+        }
+    }
+
+    static void refresh(Handle hdl) {
+        List<Field> fields = hdl.createQuery(REGISTRY_QUERY)
+                                .map((index, rs, ctx) -> new Field(rs.getInt("metadata_field_id"),
+                                      rs.getString("short_id"), rs.getString("element"), rs.getString("qualifier")))
+                                .list();
+        int maxId = fields.stream().mapToInt(f -> f.id).max().orElse(-1);
+        String[] names = new String[maxId + 1];
+        Map<String, Integer> ids = new HashMap<>();
+        for (Field field : fields) {
+            names[field.id] = field.name;
+            ids.put(field.name, field.id);
+        }
+        snapshot = new Snapshot(names, ImmutableMap.copyOf(ids));
+    }
+
+    static int fieldId(String name) {
+        Integer id = snapshot.ids.get(name);
+        return (id != null) ? id : -1;
+    }
+
+    static String fieldName(int fieldId) {
+        String[] names = snapshot.names;
+        return (fieldId >= 0 && fieldId < names.length) ? names[fieldId] : null;
+    }
+
+    private static class Snapshot {
+        final String[] names;
+        final Map<String, Integer> ids;
+
+        Snapshot(String[] names, Map<String, Integer> ids) {
+            this.names = names;
+            this.ids = ids;
+        }
+    }
+
+    private static class Field {
+        final int id;
+        final String name;
+
+        Field(int id, String schema, String element, String qualifier) {
+            this.id = id;
+            this.name = (qualifier != null) ? schema + "." + element + "." + qualifier
+                                            : schema + "." + element;
+        }
+    }
+}
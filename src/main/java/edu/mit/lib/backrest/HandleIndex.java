@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+/**
+ * HandleIndex holds the DSpace handle table in memory, resolving both
+ * (resource type, resource id) to handle, and handle to (type, id).
+ * Repositories may have millions of handles, so entries are kept in
+ * parallel arrays (the handle string and its packed type/id reference),
+ * addressed by two open-addressing hash tables of entry positions: no
+ * per-entry objects other than the handle strings themselves.
+ * The index is bulk-loaded at startup, then polled for new rows by handle_id.
+ *
+ * @author richardrodgers
+ */
+public class HandleIndex {
+
+    private static final int FETCH_SIZE = 10000;
+    private static final String POLL_QUERY = "select handle_id, handle, resource_type_id, resource_id " +
+                                             "from handle where handle_id > ? order by handle_id";
+
+    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // entries
+    private static String[] handles = new String[1024];
+    private static long[] refs = new long[1024];
+    private static int size = 0;
+    // hash tables of (entry position + 1), 0 meaning empty slot
+    private static int[] byRef = new int[2048];
+    private static int[] byHandle = new int[2048];
+    // poll watermark
+    private static int lastHandleId = -1;
+    // told of objects given handles after the initial load
+    private static volatile BiConsumer<Integer, Integer> changeListener;
+
+    static void load(DBI dbi) {
+        refresh(dbi);
+        Backrest.refreshEvery("handle index", () -> refresh(dbi));
+    }
+
+    static void onChange(BiConsumer<Integer, Integer> listener) {
+        changeListener = listener;
+    }
+
+    static void refresh(DBI dbi) {
+        try (Handle hdl = dbi.open()) {
+            refresh(hdl);
+        }
+    }
+
+    static synchronized void refresh(Handle hdl) {
+        // stream rows through a server-side cursor, which requires a transaction
+        hdl.begin();
+        try (ResultIterator<Row> rows = hdl.createQuery(POLL_QUERY)
+                                           .bind(0, lastHandleId)
+                                           .setFetchSize(FETCH_SIZE)
+                                           .map(new RowMapper()).iterator()) {
+            List<Row> batch = new ArrayList<>(FETCH_SIZE);
+            while (rows.hasNext()) {
+                batch.add(rows.next());
+                if (batch.size() == FETCH_SIZE || ! rows.hasNext()) {
+                    // only block readers while adding, not while reading the DB
+                    lock.writeLock().lock();
+                    try {
+                        for (Row row : batch) {
+                            if (row.handle != null && row.bound) {
+                                put(row.handle, row.resType, row.resId);
+                            }
+                            lastHandleId = row.handleId;
+                        }
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    BiConsumer<Integer, Integer> listener = changeListener;
+                    if (listener != null) {
+                        batch.stream().filter(row -> row.bound).forEach(row -> listener.accept(row.resType, row.resId));
+                    }
+                    batch.clear();
+                }
+            }
+        } finally {
+            // only read, so nothing to commit - and a failed transaction could not be
+            hdl.rollback();
+        }
+    }
+
+    static String handle(int resType, int resId) {
+        long ref = ref(resType, resId);
+        lock.readLock().lock();
+        try {
+            int slot = findRef(ref);
+            return (byRef[slot] != 0) ? handles[byRef[slot] - 1] : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static DSpaceObject resolve(String handle) {
+        lock.readLock().lock();
+        try {
+            int slot = findHandle(handle);
+            if (byHandle[slot] != 0) {
+                long ref = refs[byHandle[slot] - 1];
+                int resType = (int)(ref >>> 32);
+                return new DSpaceObject((int)ref, "found", handle, ResourcePolicy.typeId2type(resType), "link",
+                                        new ArrayList<String>());
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void put(String handle, int resType, int resId) {
+        // caller holds write lock
+        long ref = ref(resType, resId);
+        int hSlot = findHandle(handle);
+        if (byHandle[hSlot] != 0) {
+            // handle reassigned - drop the old reference mapping
+            int pos = byHandle[hSlot] - 1;
+            int rSlot = findRef(refs[pos]);
+            if (byRef[rSlot] == pos + 1) {
+                removeRef(rSlot);
+            }
+            refs[pos] = ref;
+            byRef[findRef(ref)] = pos + 1;
+            return;
+        }
+        if (size == handles.length) {
+            handles = Arrays.copyOf(handles, size * 2);
+            refs = Arrays.copyOf(refs, size * 2);
+        }
+        handles[size] = handle;
+        refs[size] = ref;
+        size++;
+        if (size * 2 > byHandle.length) {
+            rehash(byHandle.length * 2);
+        } else {
+            byHandle[hSlot] = size;
+            byRef[findRef(ref)] = size;
+        }
+    }
+
+    private static void rehash(int capacity) {
+        byHandle = new int[capacity];
+        byRef = new int[capacity];
+        for (int pos = 0; pos < size; pos++) {
+            byHandle[findHandle(handles[pos])] = pos + 1;
+            byRef[findRef(refs[pos])] = pos + 1;
+        }
+    }
+
+    private static void removeRef(int slot) {
+        // backward-shift deletion keeps linear probe chains intact
+        int mask = byRef.length - 1;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (byRef[next] == 0) break;
+            int home = mix(refs[byRef[next] - 1]) & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                byRef[slot] = byRef[next];
+                slot = next;
+            }
+        }
+        byRef[slot] = 0;
+    }
+
+    private static int findRef(long ref) {
+        int mask = byRef.length - 1;
+        int slot = mix(ref) & mask;
+        while (byRef[slot] != 0 && refs[byRef[slot] - 1] != ref) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int findHandle(String handle) {
+        int mask = byHandle.length - 1;
+        int slot = mix(handle.hashCode()) & mask;
+        while (byHandle[slot] != 0 && ! handles[byHandle[slot] - 1].equals(handle)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static class Row {
+        final int handleId;
+        final String handle;
+        final int resType;
+        final int resId;
+        final boolean bound;
+
+        Row(int handleId, String handle, int resType, int resId, boolean bound) {
+            this.handleId = handleId;
+            this.handle = handle;
+            this.resType = resType;
+            this.resId = resId;
+            this.bound = bound;
+        }
+    }
+
+    private static class RowMapper implements ResultSetMapper<Row> {
+        @Override
+        public Row map(int index, ResultSet rs, StatementContext ctx) throws SQLException {
+            int resId = rs.getInt("resource_id");
+            // handles of deleted objects are left unbound
+            boolean bound = ! rs.wasNull();
+            return new Row(rs.getInt("handle_id"), rs.getString("handle"), rs.getInt("resource_type_id"), resId, bound);
+        }
+    }
+
+    private static long ref(int resType, int resId) {
+        return ((long)resType << 32) | (resId & 0xFFFFFFFFL);
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+/**
+ * Hierarchy is an in-memory index of the community/collection tree. Parent and
+ * child links are held in arrays indexed by community (or collection) DBID, along
+ * with unexpanded representations of every community, so that ancestor chains,
+ * sub-communities and parent lists need no DB access. Like the field registry,
+ * the index is rebuilt periodically and published as an immutable snapshot - and
+ * between rebuilds, communities whose contents the change poller sees change are
+ * re-read individually, so that their item counts do not lag.
+ *
+ * @author richardrodgers
+ */
+public class Hierarchy {
+
+    private static final int[] NONE = new int[0];
+
+    private static volatile Snapshot snapshot = new Snapshot(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+
+    static void load(DBI dbi) {
+        refresh(dbi);
+        Backrest.refreshEvery("community hierarchy", () -> refresh(dbi));
+    }
+
+    static void refresh(DBI dbi) {
+        try (Handle hdl = dbi.open()) {
+            refresh(hdl);
+        }
+    }
+
+    static synchronized void refresh(Handle hdl) {
+        List<Community> comms = hdl.createQuery(Community.SELECT)
+                                   .map(new Community.CommunityMapper(hdl, null)).list();
+        List<int[]> commLinks = hdl.createQuery("select parent_comm_id, child_comm_id from community2community")
+                                   .map((index, rs, ctx) -> new int[] { rs.getInt("parent_comm_id"), rs.getInt("child_comm_id") })
+                                   .list();
+        List<int[]> collLinks = hdl.createQuery("select community_id, collection_id from community2collection")
+                                   .map((index, rs, ctx) -> new int[] { rs.getInt("community_id"), rs.getInt("collection_id") })
+                                   .list();
+        snapshot = new Snapshot(comms, commLinks, collLinks);
+    }
+
+    static synchronized void refresh(Handle hdl, Set<Integer> commIds) {
+        // re-reads just the given communities (for their item counts, say), leaving the tree as it is
+        if (commIds.isEmpty()) return;
+        List<Community> comms = hdl.createQuery(Community.SELECT + "where community_id in (" + DSpaceObject.idList(commIds) + ")")
+                                   .map(new Community.CommunityMapper(hdl, null)).list();
+        snapshot = snapshot.with(comms);
+    }
+
+    static int[] topCommunities() {
+        return snapshot.topComms;
+    }
+
+    static int[] parents(int commId) {
+        return at(snapshot.commParents, commId);
+    }
+
+    static int[] subCommunities(int commId) {
+        return at(snapshot.commSubs, commId);
+    }
+
+    static int[] collections(int commId) {
+        return at(snapshot.commColls, commId);
+    }
+
+    static int[] owners(int collId) {
+        return at(snapshot.collComms, collId);
+    }
+
+    static Set<Integer> ancestors(int commId) {
+        // insertion-ordered from nearest to most remote - set also guards against cycles
+        Set<Integer> ancestors = new LinkedHashSet<>();
+        addAncestors(snapshot, ancestors, commId);
+        return ancestors;
+    }
+
+    static Set<Integer> collectionAncestors(int collId) {
+        // owning communities first, then their ancestors
+        Snapshot snap = snapshot;
+        Set<Integer> ancestors = new LinkedHashSet<>();
+        for (int commId : at(snap.collComms, collId)) {
+            ancestors.add(commId);
+        }
+        for (int commId : at(snap.collComms, collId)) {
+            addAncestors(snap, ancestors, commId);
+        }
+        return ancestors;
+    }
+
+    static Community community(int commId) {
+        Community[] comms = snapshot.comms;
+        return (commId >= 0 && commId < comms.length) ? comms[commId] : null;
+    }
+
+    private static void addAncestors(Snapshot snap, Set<Integer> acc, int commId) {
+        for (int parentId : at(snap.commParents, commId)) {
+            if (acc.add(parentId)) {
+                addAncestors(snap, acc, parentId);
+            }
+        }
+    }
+
+    private static int[] at(int[][] links, int id) {
+        return (id >= 0 && id < links.length && links[id] != null) ? links[id] : NONE;
+    }
+
+    private static class Snapshot {
+        final Community[] comms;
+        final int[] topComms;
+        final int[][] commParents;
+        final int[][] commSubs;
+        final int[][] commColls;
+        final int[][] collComms;
+
+        private Snapshot(Community[] comms, Snapshot tree) {
+            this.comms = comms;
+            topComms = tree.topComms;
+            commParents = tree.commParents;
+            commSubs = tree.commSubs;
+            commColls = tree.commColls;
+            collComms = tree.collComms;
+        }
+
+        Snapshot(List<Community> commList, List<int[]> commLinks, List<int[]> collLinks) {
+            int maxComm = commList.stream().mapToInt(c -> c.id).max().orElse(-1);
+            comms = new Community[maxComm + 1];
+            for (Community comm : commList) {
+                comms[comm.id] = comm;
+            }
+            // links are (parent, child) pairs
+            commParents = invert(commLinks, maxComm);
+            commSubs = group(commLinks, maxComm);
+            commColls = group(collLinks, maxComm);
+            collComms = invert(collLinks, collLinks.stream().mapToInt(l -> l[1]).max().orElse(-1));
+            topComms = commList.stream().mapToInt(c -> c.id)
+                               .filter(id -> at(commParents, id).length == 0).toArray();
+        }
+
+        Snapshot with(List<Community> updates) {
+            // a new snapshot sharing this one's links - snapshots are never changed, since readers may hold them
+            int maxComm = updates.stream().mapToInt(c -> c.id).max().orElse(-1);
+            Community[] newComms = Arrays.copyOf(comms, Math.max(comms.length, maxComm + 1));
+            for (Community comm : updates) {
+                newComms[comm.id] = comm;
+            }
+            return new Snapshot(newComms, this);
+        }
+
+        private static int[][] group(List<int[]> links, int maxId) {
+            return index(links, maxId, 0, 1);
+        }
+
+        private static int[][] invert(List<int[]> links, int maxId) {
+            return index(links, maxId, 1, 0);
+        }
+
+        private static int[][] index(List<int[]> links, int maxId, int key, int value) {
+            int size = Math.max(maxId, links.stream().mapToInt(l -> l[key]).max().orElse(-1)) + 1;
+            int[] counts = new int[size];
+            for (int[] link : links) {
+                counts[link[key]]++;
+            }
+            int[][] index = new int[size][];
+            for (int[] link : links) {
+                int[] vals = index[link[key]];
+                if (vals == null) {
+                    vals = index[link[key]] = new int[counts[link[key]]];
+                    counts[link[key]] = 0;
+                }
+                vals[counts[link[key]]++] = link[value];
+            }
+            return index;
+        }
+    }
+}
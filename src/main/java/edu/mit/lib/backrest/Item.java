@@ -6,23 +6,32 @@ package edu.mit.lib.backrest;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.skife.jdbi.v2.util.IntegerColumnMapper;
 import org.skife.jdbi.v2.util.StringMapper;
 
 import spark.QueryParamsMap;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import static com.google.common.base.Strings.*;
 
 /**
@@ -35,6 +44,9 @@ public class Item extends DSpaceObject {
 
     public static final int TYPE = 2;
     public static final String SELECT = "select * from item ";
+    // rows fetched per cursor round trip, and items expanded together, in an export
+    private static final int EXPORT_FETCH_SIZE = 1000;
+    private static final int EXPORT_BATCH = 100;
 
     public String archived;
     public String withdrawn;
@@ -44,6 +56,9 @@ public class Item extends DSpaceObject {
     public List<Community> parentCommunityList;
     public List<MetadataValue> metadata;
     public List<Bitstream> bitstreams;
+    @JsonIgnore
+    @XmlTransient
+    public int owningCollection;
 
     //JAXB needs
     Item() {}
@@ -62,23 +77,94 @@ public class Item extends DSpaceObject {
         this.bitstreams = bitstreams;
     }
 
+    @Override
+    void addTags(Set<String> tags) {
+        super.addTags(tags);
+        tagsOf(parentCollection, tags);
+        tagsOf(parentCollectionList, tags);
+        tagsOf(parentCommunityList, tags);
+        tagsOf(bitstreams, tags);
+    }
+
     static List<Item> findAll(Handle hdl, QueryParamsMap params) {
-        String queryString = SELECT + "where in_archive='1' order by item_id limit ? offset ?";
         int limit = Backrest.limitFromParam(params);
-        int offset = Backrest.offsetFromParam(params);
-        return hdl.createQuery(queryString)
-                  .bind(0, limit).bind(1, offset)
-                  .map(new ItemMapper(hdl, params)).list();
+        int after = Backrest.afterFromParam(params);
+        ItemMapper mapper = new ItemMapper(params);
+        Query<Item> query;
+        if (after != -1) {
+            // keyset (cursor) paging - no prefix of rows to scan and discard
+            query = hdl.createQuery(SELECT + "where in_archive='1' and item_id > ? order by item_id limit ?")
+                       .bind(0, after).bind(1, limit).map(mapper);
+        } else {
+            query = hdl.createQuery(SELECT + "where in_archive='1' order by item_id limit ? offset ?")
+                       .bind(0, limit).bind(1, Backrest.offsetFromParam(params)).map(mapper);
+        }
+        return mapper.expand(hdl, query.list());
     }
 
     static List<Item> findByColl(Handle hdl, int collId, QueryParamsMap params, int limit, int offset) {
         String queryString = "select item.* from item, collection2item " +
                              "where item.item_id=collection2item.item_id " +
                              "and collection2item.collection_id= ? " +
-                             "and item.in_archive='1' order by item.item_id limit ? offset ?";
-        return hdl.createQuery(queryString)
-                  .bind(0, collId).bind(1, limit).bind(2, offset)
-                  .map(new ItemMapper(hdl, params)).list();
+                             "and item.in_archive='1' ";
+        int after = Backrest.afterFromParam(params);
+        ItemMapper mapper = new ItemMapper(params);
+        Query<Item> query;
+        if (after != -1) {
+            query = hdl.createQuery(queryString + "and item.item_id > ? order by item.item_id limit ?")
+                       .bind(0, collId).bind(1, after).bind(2, limit).map(mapper);
+        } else {
+            query = hdl.createQuery(queryString + "order by item.item_id limit ? offset ?")
+                       .bind(0, collId).bind(1, limit).bind(2, offset).map(mapper);
+        }
+        return mapper.expand(hdl, query.list());
+    }
+
+    static Map<Integer, List<Item>> findByColls(Handle hdl, List<Integer> collIds, int limit, int offset) {
+        // a page of each collection's items, as findByColl, but in a single statement
+        StringBuilder queryString = new StringBuilder();
+        for (Integer collId : collIds) {
+            if (queryString.length() > 0) queryString.append(" union all ");
+            queryString.append("(select item.*, collection2item.collection_id as member_of from item, collection2item ")
+                       .append("where item.item_id=collection2item.item_id ")
+                       .append("and collection2item.collection_id=").append(collId).append(" ")
+                       .append("and item.in_archive='1' ")
+                       .append("order by item.item_id limit ").append(limit).append(" offset ").append(offset).append(")");
+        }
+        ItemMapper mapper = new ItemMapper(null);
+        List<SimpleEntry<Integer, Item>> members = hdl.createQuery(queryString.toString())
+                  .map((index, rs, ctx) -> new SimpleEntry<>(rs.getInt("member_of"), mapper.map(index, rs, ctx)))
+                  .list();
+        mapper.expand(hdl, members.stream().map(m -> m.getValue()).collect(Collectors.toList()));
+        return members.stream().collect(Collectors.groupingBy(m -> m.getKey(),
+                                        Collectors.mapping(m -> m.getValue(), Collectors.toList())));
+    }
+
+    static void exportByColl(Handle hdl, int collId, QueryParamsMap params, Consumer<List<Item>> sink) {
+        String queryString = "select item.* from item, collection2item " +
+                             "where item.item_id=collection2item.item_id " +
+                             "and collection2item.collection_id= ? " +
+                             "and item.in_archive='1' order by item.item_id";
+        ItemMapper mapper = new ItemMapper(params);
+        // stream rows through a server-side cursor, which requires a transaction
+        hdl.begin();
+        try (ResultIterator<Item> rows = hdl.createQuery(queryString)
+                                            .bind(0, collId)
+                                            .setFetchSize(EXPORT_FETCH_SIZE)
+                                            .map(mapper).iterator()) {
+            List<Item> batch = new ArrayList<>(EXPORT_BATCH);
+            while (rows.hasNext()) {
+                batch.add(rows.next());
+                if (batch.size() == EXPORT_BATCH || ! rows.hasNext()) {
+                    // expansions are loaded a batch at a time, and the batch handed off before the next
+                    sink.accept(mapper.expand(hdl, batch));
+                    batch.clear();
+                }
+            }
+        } finally {
+            // only read, so nothing to commit - and a failed transaction could not be
+            hdl.rollback();
+        }
     }
 
     static List<Item> findByMetadata(Handle hdl, int fieldId, MetadataValue mdv, QueryParamsMap params) {
@@ -86,15 +172,68 @@ public class Item extends DSpaceObject {
                              "where item.item_id = mdv.item_id " +
                              "and mdv.metadata_field_id = ? " +
                              "and mdv.text_value = ?";
-        return hdl.createQuery(queryString)
-                  .bind(0, fieldId).bind(1, mdv.value)
-                  .map(new ItemMapper(hdl, params)).list();
+        ItemMapper mapper = new ItemMapper(params);
+        return mapper.expand(hdl, hdl.createQuery(queryString)
+                                     .bind(0, fieldId).bind(1, mdv.value)
+                                     .map(mapper).list());
     }
 
     static Item findById(Handle hdl, int itemId, QueryParamsMap params) {
-        return hdl.createQuery(SELECT + " where item_id = ?")
+        ItemMapper mapper = new ItemMapper(params);
+        return mapper.expand(hdl, hdl.createQuery(SELECT + " where item_id = ?")
+                                     .bind(0, itemId)
+                                     .map(mapper).first());
+    }
+
+    static List<Item> findByIds(Handle hdl, List<Integer> itemIds, QueryParamsMap params) {
+        ItemMapper mapper = new ItemMapper(params);
+        return mapper.expand(hdl, hdl.createQuery(SELECT + "where item_id in (" + DSpaceObject.idList(itemIds) + ")")
+                                     .map(mapper).list());
+    }
+
+    static Validator validator(Handle hdl, int itemId) {
+        return hdl.createQuery("select last_modified from item where item_id = ?")
                   .bind(0, itemId)
-                  .map(new ItemMapper(hdl, params)).first();
+                  .map((index, rs, ctx) -> Validator.ofTime("item", itemId, rs.getTimestamp("last_modified")))
+                  .first();
+    }
+
+    static Validator validator(Handle hdl, int itemId, List<String> relations) {
+        // item row changes do not cover the names, counts and handles of its parents, nor its bitstreams
+        Validator validator = validator(hdl, itemId);
+        if (validator == null || relations.isEmpty()) return validator;
+        boolean all = relations.contains("all");
+        if (all || relations.contains("parentCollection") || relations.contains("parentCollectionList") ||
+            relations.contains("parentCommunityList")) {
+            List<Integer> collIds = hdl.createQuery("select collection_id from collection2item where item_id = ? " +
+                                                    "union select owning_collection from item where item_id = ?")
+                                       .bind(0, itemId).bind(1, itemId)
+                                       .map(IntegerColumnMapper.WRAPPER).list();
+            collIds.removeIf(id -> id == null);
+            validator = validator.and(hdl, "select collection.*, handle.handle, (select count(*) from collection2item " +
+                                      "where collection2item.collection_id = collection.collection_id) as members " +
+                                      "from collection left join handle on handle.resource_type_id = " + Collection.TYPE + " " +
+                                      "and handle.resource_id = collection.collection_id " +
+                                      "where collection.collection_id in (" + DSpaceObject.idList(collIds) + ") " +
+                                      "order by collection.collection_id");
+            Set<Integer> commIds = new TreeSet<>();
+            collIds.forEach(collId -> commIds.addAll(Hierarchy.collectionAncestors(collId)));
+            validator = validator.and(hdl, "select community.*, handle.handle from community " +
+                                      "left join handle on handle.resource_type_id = " + Community.TYPE + " " +
+                                      "and handle.resource_id = community.community_id " +
+                                      "where community.community_id in (" + DSpaceObject.idList(commIds) + ") " +
+                                      "order by community.community_id");
+        }
+        if (all || relations.contains("bitstreams")) {
+            validator = validator.and(hdl, "select bitstream.*, bundle.name as bundle_name " +
+                                      "from bitstream, bundle, bundle2bitstream, item2bundle " +
+                                      "where bitstream.bitstream_id = bundle2bitstream.bitstream_id " +
+                                      "and bundle.bundle_id = bundle2bitstream.bundle_id " +
+                                      "and item2bundle.bundle_id = bundle2bitstream.bundle_id " +
+                                      "and item2bundle.item_id = " + itemId + " " +
+                                      "order by bitstream.bitstream_id, bundle.bundle_id");
+        }
+        return validator;
     }
 
     static Item findByChild(Handle hdl, int bsId) {
@@ -102,53 +241,94 @@ public class Item extends DSpaceObject {
                              "where item.item_id = item2bundle.item_id " +
                              "and item2bundle.bundle_id = bundle2bitstream.bundle_id " +
                              "and bundle2bitstream.bitstream_id= ?";
-        return hdl.createQuery(queryString)
-                  .bind(0, bsId)
-                  .map(new ItemMapper(hdl, null)).first();
+        ItemMapper mapper = new ItemMapper(null);
+        return mapper.expand(hdl, hdl.createQuery(queryString)
+                                     .bind(0, bsId)
+                                     .map(mapper).first());
+    }
+
+    static Map<Integer, Item> findByChildren(Handle hdl, List<Integer> bsIds) {
+        String queryString = "select item.*, bundle2bitstream.bitstream_id from item, item2bundle, bundle2bitstream " +
+                             "where item.item_id = item2bundle.item_id " +
+                             "and item2bundle.bundle_id = bundle2bitstream.bundle_id " +
+                             "and bundle2bitstream.bitstream_id in (" + DSpaceObject.idList(bsIds) + ")";
+        ItemMapper mapper = new ItemMapper(null);
+        List<SimpleEntry<Integer, Item>> links = hdl.createQuery(queryString)
+                  .map((index, rs, ctx) -> new SimpleEntry<>(rs.getInt("bitstream_id"), mapper.map(index, rs, ctx)))
+                  .list();
+        mapper.expand(hdl, links.stream().map(l -> l.getValue()).collect(Collectors.toList()));
+        return links.stream().collect(Collectors.toMap(l -> l.getKey(), l -> l.getValue(), (first, other) -> first));
     }
 
+    /**
+     * ItemMapper maps only the item row itself: expansions (and the name and handle)
+     * are loaded afterwards for a whole result page at once, so that a page costs
+     * a fixed number of queries, regardless of its size.
+     */
     static class ItemMapper implements ResultSetMapper<Item> {
 
-        private final List<String> canExpand = new ArrayList<String>(Arrays.asList("parentCollectionList",
-                             "parentCollection", "parentCommunityList", "metadata", "bitstreams", "all"));
+        static final List<String> EXPANDS = Arrays.asList("parentCollectionList", "parentCollection",
+                                                          "parentCommunityList", "metadata", "bitstreams", "all");
+        private final List<String> canExpand = new ArrayList<String>(EXPANDS);
         private final List<String> toExpand;
-        private final Handle hdl;
 
-        public ItemMapper(Handle hdl, QueryParamsMap params) {
-            this.hdl = hdl;
+        public ItemMapper(QueryParamsMap params) {
             this.toExpand = Backrest.toExpandList(params, canExpand);
         }
 
         @Override
         public Item map(int index, ResultSet rs, StatementContext ctx) throws SQLException {
-            int itemId = rs.getInt("item_id");
-            List<Bitstream> bitstreams = null;
-            List<MetadataValue> metadata = null;
-            List<Collection> parents = null;
-            List<Community> communities = null;
-            Collection owner = null;
+            Item item = new Item(rs.getInt("item_id"), null, null,
+                                 Boolean.toString(rs.getBoolean("in_archive")),
+                                 Boolean.toString(rs.getBoolean("withdrawn")),
+                                 rs.getTimestamp("last_modified").toString(),
+                                 null, null, null, null, null, canExpand);
+            item.owningCollection = rs.getInt("owning_collection");
+            return item;
+        }
+
+        Item expand(Handle hdl, Item item) {
+            if (item != null) {
+                expand(hdl, Arrays.asList(item));
+            }
+            return item;
+        }
+
+        List<Item> expand(Handle hdl, List<Item> items) {
+            if (items.isEmpty()) return items;
+            List<Integer> itemIds = items.stream().map(i -> i.id).collect(Collectors.toList());
+            // one query per expansion type for the whole page
+            Map<Integer, List<Collection>> parents = null;
+            Map<Integer, Collection> owners = null;
+            Map<Integer, List<Community>> communities = null;
+            Map<Integer, List<MetadataValue>> metadata = null;
+            Map<Integer, List<Bitstream>> bitstreams = null;
             for (String expand : toExpand) {
-                  switch (expand) {
-                      case "parentCollectionList": parents = Collection.findByChild(hdl, itemId); break;
-                      case "parentCollection": owner = Collection.findById(hdl, rs.getInt("owning_collection"), null); break;
-                      case "parentCommunityList": communities = Community.findByItem(hdl, itemId); break;
-                      case "metadata": metadata = MetadataValue.findByItem(hdl, itemId); break;
-                      case "bitstreams": bitstreams = Bitstream.findByItem(hdl, itemId); break;
-                      default: break;
-                  }
+                switch (expand) {
+                    case "parentCollectionList": parents = Collection.findByChildren(hdl, itemIds); break;
+                    case "parentCollection": owners = Collection.findByIds(hdl, items.stream().map(i -> i.owningCollection)
+                                                                                     .distinct().collect(Collectors.toList()), null)
+                                                                .stream().collect(Collectors.toMap(c -> c.id, c -> c)); break;
+                    case "parentCommunityList": communities = Community.findByItems(hdl, itemIds); break;
+                    case "metadata": metadata = MetadataValue.findByItems(hdl, itemIds); break;
+                    case "bitstreams": bitstreams = Bitstream.findByItems(hdl, itemIds); break;
+                    default: break;
+                }
+            }
+            // only need the full metadata record to name items if already loaded
+            Map<Integer, String> titles = (metadata == null) ? MetadataValue.findTitles(hdl, items) : null;
+            Map<Integer, String> handles = DSpaceObject.handlesFor(hdl, TYPE, itemIds);
+            for (Item item : items) {
+                item.name = (titles != null) ? titles.get(item.id)
+                                             : MetadataValue.titleOf(metadata.getOrDefault(item.id, new ArrayList<>()));
+                item.handle = handles.get(item.id);
+                if (parents != null) item.parentCollectionList = parents.getOrDefault(item.id, new ArrayList<>());
+                if (owners != null) item.parentCollection = owners.get(item.owningCollection);
+                if (communities != null) item.parentCommunityList = communities.getOrDefault(item.id, new ArrayList<>());
+                if (metadata != null) item.metadata = metadata.getOrDefault(item.id, new ArrayList<>());
+                if (bitstreams != null) item.bitstreams = bitstreams.getOrDefault(item.id, new ArrayList<>());
             }
-            List<MetadataValue> mdvList = (metadata != null) ? metadata.stream()
-                                          .filter(mdv -> mdv.key.equals("dc.title"))
-                                          .collect(Collectors.toList())
-                                        : MetadataValue.findByItem(hdl, itemId).stream()
-                                          .filter(mdv -> mdv.key.equals("dc.title"))
-                                          .collect(Collectors.toList());
-            String name = mdvList.size() > 0 ? mdvList.get(0).value : "Missing title";
-            return new Item(itemId, name, DSpaceObject.handleFor(hdl, TYPE, itemId),
-                            Boolean.toString(rs.getBoolean("in_archive")),
-                            Boolean.toString(rs.getBoolean("withdrawn")),
-                            rs.getTimestamp("last_modified").toString(),
-                            owner, parents, communities, metadata, bitstreams, canExpand);
+            return items;
         }
     }
 
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
+/**
+ * MetadataIndex is an in-memory inverted index of the values of a few metadata
+ * fields (typically identifiers), so that 'mama' lookups may find the items with
+ * a given value without a DB query. Each (field, value) key maps to
+ * a sorted array of item DBIDs, and each item to the keys it holds, so that an
+ * edited item may be re-indexed. The index is loaded at startup, and kept current
+ * by the change poller, which reports the items modified since its last look.
+ * Values are matched exactly, as the query on an unindexed field would match them.
+ *
+ * @author richardrodgers
+ */
+public class MetadataIndex {
+
+    private static final int FETCH_SIZE = 10000;
+    private static final int BATCH_SIZE = 1000;
+    private static final int[] NO_ITEMS = new int[0];
+    private static final String VALUE_QUERY = "select item_id, metadata_field_id, text_value from metadatavalue " +
+                                              "where metadata_field_id in (";
+
+    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // DBIDs of the indexed fields
+    private static volatile int[] fieldIds = NO_ITEMS;
+    // key -> item DBIDs, item DBID -> keys
+    private static Map<String, int[]> postings = new HashMap<>();
+    private static Map<Integer, String[]> itemKeys = new HashMap<>();
+    private static ChangePoller.Listener changes;
+
+    static void load(DBI dbi, String fields) {
+        List<Integer> ids = new ArrayList<>();
+        for (String field : Splitter.on(',').trimResults().omitEmptyStrings().split(fields)) {
+            int fieldId = FieldRegistry.fieldId(field);
+            if (fieldId != -1) {
+                ids.add(fieldId);
+            } else {
+                Backrest.logger.error("Unknown metadata field '{}' not indexed", field);
+            }
+        }
+        if (ids.isEmpty()) return;
+        long start = System.currentTimeMillis();
+        try (Handle hdl = dbi.open()) {
+            build(hdl, ids.stream().mapToInt(Integer::intValue).toArray());
+        }
+        Backrest.logger.info("Metadata index loaded: {} values of {} items in {} ms", postings.size(), itemKeys.size(),
+                             System.currentTimeMillis() - start);
+        // re-indexes changed items - replacing the listener of any earlier load
+        ChangePoller.removeListener(changes);
+        changes = (items, collections, communities) -> reindex(dbi, items);
+        ChangePoller.addListener(changes);
+    }
+
+    static void clear() {
+        // the index is dropped, and no longer followed, until loaded again
+        ChangePoller.removeListener(changes);
+        lock.writeLock().lock();
+        try {
+            fieldIds = NO_ITEMS;
+            postings = new HashMap<>();
+            itemKeys = new HashMap<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the DBIDs of the items having the value in the field, or null if
+     * the field is not indexed (and so must be queried for).
+     */
+    static int[] lookup(int fieldId, String value) {
+        lock.readLock().lock();
+        try {
+            if (! indexed(fieldId)) return null;
+            int[] items = postings.get(key(fieldId, value));
+            return (items != null) ? items : NO_ITEMS;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static boolean indexes(int fieldId) {
+        lock.readLock().lock();
+        try {
+            return indexed(fieldId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void build(Handle hdl, int[] fields) {
+        Map<String, Postings> building = new HashMap<>();
+        Map<Integer, List<String>> keysOf = new HashMap<>();
+        // stream rows through a server-side cursor, which requires a transaction
+        hdl.begin();
+        try (ResultIterator<Row> rows = hdl.createQuery(VALUE_QUERY + idList(fields) + ")")
+                                           .setFetchSize(FETCH_SIZE)
+                                           .map(new RowMapper()).iterator()) {
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                if (row.value == null) continue;
+                String key = key(row.fieldId, row.value);
+                building.computeIfAbsent(key, k -> new Postings()).add(row.itemId);
+                keysOf.computeIfAbsent(row.itemId, id -> new ArrayList<>()).add(key);
+            }
+        } finally {
+            // only read, so nothing to commit - and a failed transaction could not be
+            hdl.rollback();
+        }
+        Map<String, int[]> newPostings = new HashMap<>(building.size() * 4 / 3 + 1);
+        building.forEach((key, items) -> newPostings.put(key, items.toArray()));
+        Map<Integer, String[]> newItemKeys = new HashMap<>(keysOf.size() * 4 / 3 + 1);
+        keysOf.forEach((itemId, keys) -> newItemKeys.put(itemId, keys.stream().distinct().toArray(String[]::new)));
+        lock.writeLock().lock();
+        try {
+            fieldIds = fields;
+            postings = newPostings;
+            itemKeys = newItemKeys;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static void reindex(DBI dbi, Set<Integer> items) {
+        if (items.isEmpty() || fieldIds.length == 0) return;
+        try (Handle hdl = dbi.open()) {
+            for (List<Integer> batch : Lists.partition(new ArrayList<>(items), BATCH_SIZE)) {
+                reindex(hdl, batch);
+            }
+        }
+    }
+
+    private static void reindex(Handle hdl, List<Integer> items) {
+        // read current values before taking the lock - readers wait only for the update
+        Map<Integer, List<String>> keysOf = new HashMap<>();
+        hdl.createQuery(VALUE_QUERY + idList(fieldIds) + ") and item_id in (" + DSpaceObject.idList(items) + ")")
+           .map(new RowMapper()).list().stream().filter(row -> row.value != null)
+           .forEach(row -> keysOf.computeIfAbsent(row.itemId, id -> new ArrayList<>()).add(key(row.fieldId, row.value)));
+        lock.writeLock().lock();
+        try {
+            for (Integer itemId : items) {
+                String[] oldKeys = itemKeys.remove(itemId);
+                if (oldKeys != null) {
+                    for (String key : oldKeys) {
+                        remove(key, itemId);
+                    }
+                }
+                List<String> keys = keysOf.get(itemId);
+                if (keys != null) {
+                    String[] newKeys = keys.stream().distinct().toArray(String[]::new);
+                    for (String key : newKeys) {
+                        add(key, itemId);
+                    }
+                    itemKeys.put(itemId, newKeys);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void add(String key, int itemId) {
+        // caller holds write lock; arrays are replaced, never changed, since readers may hold them
+        int[] items = postings.getOrDefault(key, NO_ITEMS);
+        int pos = Arrays.binarySearch(items, itemId);
+        if (pos < 0) {
+            pos = -(pos + 1);
+            int[] added = new int[items.length + 1];
+            System.arraycopy(items, 0, added, 0, pos);
+            added[pos] = itemId;
+            System.arraycopy(items, pos, added, pos + 1, items.length - pos);
+            postings.put(key, added);
+        }
+    }
+
+    private static void remove(String key, int itemId) {
+        // caller holds write lock
+        int[] items = postings.get(key);
+        int pos = (items != null) ? Arrays.binarySearch(items, itemId) : -1;
+        if (pos >= 0) {
+            if (items.length == 1) {
+                postings.remove(key);
+            } else {
+                int[] removed = new int[items.length - 1];
+                System.arraycopy(items, 0, removed, 0, pos);
+                System.arraycopy(items, pos + 1, removed, pos, removed.length - pos);
+                postings.put(key, removed);
+            }
+        }
+    }
+
+    private static boolean indexed(int fieldId) {
+        for (int id : fieldIds) {
+            if (id == fieldId) return true;
+        }
+        return false;
+    }
+
+    private static String key(int fieldId, String value) {
+        // no normalization: the DB query for an unindexed field compares text_value exactly
+        return fieldId + ":" + value;
+    }
+
+    private static String idList(int[] ids) {
+        return Arrays.stream(ids).mapToObj(String::valueOf).collect(Collectors.joining(","));
+    }
+
+    private static class Postings {
+        int[] items = new int[1];
+        int size = 0;
+
+        void add(int itemId) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = itemId;
+        }
+
+        int[] toArray() {
+            // sorted and without duplicates (an item may repeat a value)
+            return Arrays.stream(items, 0, size).sorted().distinct().toArray();
+        }
+    }
+
+    private static class Row {
+        final int itemId;
+        final int fieldId;
+        final String value;
+
+        Row(int itemId, int fieldId, String value) {
+            this.itemId = itemId;
+            this.fieldId = fieldId;
+            this.value = value;
+        }
+    }
+
+    private static class RowMapper implements ResultSetMapper<Row> {
+        @Override
+        public Row map(int index, ResultSet rs, StatementContext ctx) throws SQLException {
+            return new Row(rs.getInt("item_id"), rs.getInt("metadata_field_id"), rs.getString("text_value"));
+        }
+    }
+}
@@ -8,9 +8,17 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -22,11 +30,10 @@ import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
-import org.skife.jdbi.v2.util.IntegerColumnMapper;
-import org.skife.jdbi.v2.util.StringMapper;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.primitives.Ints;
 import static com.google.common.base.Strings.*;
 
 /**
@@ -38,8 +45,12 @@ import static com.google.common.base.Strings.*;
 public class MetadataValue {
     // default response field if none requested - should always have a value
     private static final String URI_FIELD = "dc.identifier.uri";
-    // cache of field names <-> field DBIDs
-    public static BiMap<String, Integer> fieldIds = HashBiMap.create();
+    // field used to name items
+    private static final String TITLE_FIELD = "dc.title";
+    private static final String MISSING_TITLE = "Missing title";
+    // bounded cache of item titles, keyed by item DBID - each held with the item modification time
+    // it was read at, so that an edited item's title is re-read, whether or not anything invalidates it
+    private static final com.google.common.cache.Cache<Integer, Title> titles = titleCache();
 
     @XmlTransient
     public int itemId;
@@ -60,51 +71,15 @@ public class MetadataValue {
     public int getItemId() { return itemId; }
 
     static int findFieldId(Handle hdl, String field) {
-        if (fieldIds.containsKey(field)) return fieldIds.get(field);
-        String[] parts = field.split("\\.");
-        Integer schemaId = hdl.createQuery("select metadata_schema_id from metadataschemaregistry where short_id = ?")
-                              .bind(0, parts[0])
-                              .map(IntegerColumnMapper.PRIMITIVE).first();
-        if (null != schemaId) {
-            Integer fieldId = null;
-            if (parts.length == 2) {
-                fieldId = hdl.createQuery("select metadata_field_id from metadatafieldregistry where metadata_schema_id = ? and element = ?")
-                              .bind(0, schemaId).bind(1, parts[1])
-                              .map(IntegerColumnMapper.PRIMITIVE).first();
-            } else if (parts.length == 3) {
-                fieldId = hdl.createQuery("select metadata_field_id from metadatafieldregistry where metadata_schema_id = ? and element = ? and qualifier = ?")
-                             .bind(0, schemaId).bind(1, parts[1]).bind(2, parts[2])
-                             .map(IntegerColumnMapper.PRIMITIVE).first();
-            }
-            if (null != fieldId) {
-                fieldIds.put(field, fieldId);
-                return fieldId;
-            }
-        }
-        return -1;
+        return FieldRegistry.fieldId(field);
     }
 
     static String findFieldName(Handle hdl, int fieldId) {
-        String name = fieldIds.inverse().get(fieldId);
+        String name = FieldRegistry.fieldName(fieldId);
         if (name == null) {
-            StringBuilder sb = new StringBuilder();
-            String schemaQ = "select metadataschemaregistry.short_id from metadataschemaregistry, metadatafieldregistry " +
-                             "where metadataschemaregistry.metadata_schema_id=metadatafieldregistry.metadata_schema_id " +
-                             "and metadatafieldregistry.metadata_field_id = ?";
-            String scheme = hdl.createQuery(schemaQ)
-                               .bind(0, fieldId)
-                               .map(StringMapper.FIRST).first();
-            sb.append(scheme).append(".");
-            String element = hdl.createQuery("select element from metadatafieldregistry where metadata_field_id = ?")
-                                .bind(0, fieldId)
-                                .map(StringMapper.FIRST).first();
-            sb.append(element);
-            String qualifier = hdl.createQuery("select qualifier from metadatafieldregistry where metadata_field_id = ?")
-                                  .bind(0, fieldId)
-                                  .map(StringMapper.FIRST).first();
-            if (null != qualifier) sb.append(".").append(qualifier);
-            name = sb.toString();
-            fieldIds.put(name, fieldId);
+            // field must have been added since the registry was last loaded
+            FieldRegistry.refresh(hdl);
+            name = FieldRegistry.fieldName(fieldId);
         }
         return name;
     }
@@ -112,19 +87,79 @@ public class MetadataValue {
     static List<String> findItems(Handle hdl, String qfield, String value, String[] rfields) {
         String queryBase = "select lmv.* from metadatavalue lmv, metadatavalue rmv where " +
                            "lmv.item_id = rmv.item_id and rmv.metadata_field_id = ? and rmv.text_value = ? ";
-        Query<Map<String, Object>> query;
+        List<MetadataValue> rs = hdl.createQuery(queryBase + "and lmv.metadata_field_id " + responseFields(rfields))
+                                    .bind(0, findFieldId(hdl, qfield)).bind(1, value)
+                                    .map(new MetadataValueMapper(hdl)).list();
+        return itemObjects(rs);
+    }
+
+    static List<String> findItems(Handle hdl, int[] itemIds, String[] rfields) {
+        // items already known (from the metadata index), so just fetch the response fields
+        return itemObjects(findFields(hdl, Ints.asList(itemIds), rfields));
+    }
+
+    static Map<String, List<String>> findItems(Handle hdl, String qfield, List<String> values, String[] rfields) {
+        int fieldId = findFieldId(hdl, qfield);
+        // every value gets an entry, in request order, even if nothing matches it
+        Map<String, List<String>> results = new LinkedHashMap<>();
+        values.forEach(value -> results.put(value, new ArrayList<>()));
+        if (MetadataIndex.indexes(fieldId)) {
+            Map<String, int[]> matches = new HashMap<>();
+            Set<Integer> itemIds = new HashSet<>();
+            for (String value : results.keySet()) {
+                int[] ids = MetadataIndex.lookup(fieldId, value);
+                matches.put(value, ids);
+                itemIds.addAll(Ints.asList(ids));
+            }
+            if (! itemIds.isEmpty()) {
+                Map<Integer, String> objects = objectsByItem(findFields(hdl, itemIds, rfields));
+                matches.forEach((value, ids) -> Arrays.stream(ids).filter(objects::containsKey)
+                                                      .forEach(id -> results.get(value).add(objects.get(id))));
+            }
+        } else if (! results.isEmpty()) {
+            // one query for all the values - each row tagged with the value it matched
+            String params = results.keySet().stream().map(v -> "?").collect(Collectors.joining(","));
+            String queryString = "select rmv.text_value as query_value, lmv.* from metadatavalue lmv, metadatavalue rmv " +
+                                 "where lmv.item_id = rmv.item_id and rmv.metadata_field_id = ? and rmv.text_value in (" +
+                                 params + ") and lmv.metadata_field_id " + responseFields(rfields);
+            Query<Map<String, Object>> query = hdl.createQuery(queryString).bind(0, fieldId);
+            int position = 1;
+            for (String value : results.keySet()) {
+                query.bind(position++, value);
+            }
+            MetadataValueMapper mapper = new MetadataValueMapper(hdl);
+            query.map((index, rs, ctx) -> new SimpleEntry<>(rs.getString("query_value"), mapper.map(index, rs, ctx)))
+                 .list().stream().collect(Collectors.groupingBy(SimpleEntry::getKey,
+                                          Collectors.mapping(SimpleEntry::getValue, Collectors.toList())))
+                 .forEach((value, props) -> results.get(value).addAll(itemObjects(props)));
+        }
+        return results;
+    }
+
+    private static List<MetadataValue> findFields(Handle hdl, Collection<Integer> itemIds, String[] rfields) {
+        String queryString = "select * from metadatavalue where item_id in (" +
+                             DSpaceObject.idList(itemIds) + ") and metadata_field_id " + responseFields(rfields);
+        return hdl.createQuery(queryString).map(new MetadataValueMapper(hdl)).list();
+    }
+
+    private static String responseFields(String[] rfields) {
         if (null == rfields) { // just return default field
-            query = hdl.createQuery(queryBase + "and lmv.metadata_field_id = ?").bind(2, findFieldId(hdl, URI_FIELD));
+            return "= " + FieldRegistry.fieldId(URI_FIELD);
         } else { // filter out fields we can't resolve
-            String inList = Arrays.asList(rfields).stream().map(f -> String.valueOf(findFieldId(hdl, f)))
+            String inList = Arrays.asList(rfields).stream().map(f -> String.valueOf(FieldRegistry.fieldId(f)))
                                   .filter(id -> id != "-1").collect(Collectors.joining(","));
-            query = hdl.createQuery(queryBase + "and lmv.metadata_field_id in (" + inList + ")");
+            return "in (" + inList + ")";
         }
-        List<MetadataValue> rs = query.bind(0, findFieldId(hdl, qfield)).bind(1, value)
-                                      .map(new MetadataValueMapper(hdl)).list();
+    }
+
+    private static List<String> itemObjects(List<MetadataValue> values) {
+        return new ArrayList<>(objectsByItem(values).values());
+    }
+
+    private static Map<Integer, String> objectsByItem(List<MetadataValue> values) {
         // group the list by Item, then construct a JSON object with each item's properties
-        return rs.stream().collect(Collectors.groupingBy(MetadataValue::getItemId)).values()
-                 .stream().map(p -> Backrest.jsonObject(p)).collect(Collectors.toList());
+        return values.stream().collect(Collectors.groupingBy(MetadataValue::getItemId)).entrySet()
+                     .stream().collect(Collectors.toMap(e -> e.getKey(), e -> Backrest.jsonObject(e.getValue())));
     }
 
     static List<MetadataValue> findByItem(Handle hdl, int itemId) {
@@ -134,6 +169,76 @@ public class MetadataValue {
                   .map(new MetadataValueMapper(hdl)).list();
     }
 
+    static Map<Integer, List<MetadataValue>> findByItems(Handle hdl, List<Integer> itemIds) {
+        String queryString = "select * from metadatavalue where item_id in (" + DSpaceObject.idList(itemIds) + ")";
+        return hdl.createQuery(queryString)
+                  .map(new MetadataValueMapper(hdl)).list()
+                  .stream().collect(Collectors.groupingBy(MetadataValue::getItemId));
+    }
+
+    static Map<Integer, String> findTitles(Handle hdl, List<Item> items) {
+        Map<Integer, String> results = new HashMap<>();
+        Map<Integer, String> modified = new HashMap<>();
+        List<Integer> misses = new ArrayList<>();
+        for (Item item : items) {
+            Title title = titles.getIfPresent(item.id);
+            if (title != null && title.modified.equals(item.lastModified)) {
+                results.put(item.id, title.value);
+            } else if (modified.put(item.id, String.valueOf(item.lastModified)) == null) {
+                misses.add(item.id);
+            }
+        }
+        if (misses.size() > 0) {
+            // fetch only the title values, not the whole metadata record
+            String queryString = "select item_id, text_value from metadatavalue where metadata_field_id = ? " +
+                                 "and item_id in (" + DSpaceObject.idList(misses) + ") order by metadata_value_id";
+            hdl.createQuery(queryString)
+               .bind(0, findFieldId(hdl, TITLE_FIELD))
+               .map((index, rs, ctx) -> new SimpleEntry<>(rs.getInt("item_id"), rs.getString("text_value")))
+               .list().forEach(e -> results.putIfAbsent(e.getKey(), e.getValue()));
+            for (Integer itemId : misses) {
+                titles.put(itemId, new Title(modified.get(itemId), results.computeIfAbsent(itemId, id -> MISSING_TITLE)));
+            }
+        }
+        return results;
+    }
+
+    static String titleOf(List<MetadataValue> metadata) {
+        return metadata.stream().filter(mdv -> mdv.key.equals(TITLE_FIELD))
+                       .map(mdv -> mdv.value).findFirst().orElse(MISSING_TITLE);
+    }
+
+    static void forgetTitle(int itemId) {
+        titles.invalidate(itemId);
+    }
+
+    private static com.google.common.cache.Cache<Integer, Title> titleCache() {
+        // policy has same form as the response cache: 'max entries:retention'
+        String policy = System.getenv("BACKREST_TITLE_CACHE");
+        Iterator<String> policies = Splitter.on(":").split(isNullOrEmpty(policy) ? "50000:1h" : policy).iterator();
+        CacheBuilder builder = CacheBuilder.newBuilder();
+        String maxEntries = policies.next();
+        if (! isNullOrEmpty(maxEntries)) {
+            builder = builder.maximumSize(Long.valueOf(maxEntries));
+        }
+        String retain = policies.hasNext() ? policies.next() : null;
+        if (! isNullOrEmpty(retain)) {
+            int len = retain.length();
+            builder = builder.expireAfterWrite(Long.valueOf(retain.substring(0, len-1)), Cache.getUnit(retain.charAt(len-1)));
+        }
+        return builder.build();
+    }
+
+    private static class Title {
+        final String modified;
+        final String value;
+
+        Title(String modified, String value) {
+            this.modified = modified;
+            this.value = value;
+        }
+    }
+
     static class MetadataValueMapper implements ResultSetMapper<MetadataValue> {
 
         private final Handle hdl;
@@ -58,6 +58,14 @@ public class ResourcePolicy {
                   .map(new ResourcePolicyMapper(hdl)).list();
     }
 
+    static Map<Integer, List<ResourcePolicy>> findByResources(Handle hdl, int resType, List<Integer> resIds) {
+        String queryString = SELECT + "where resource_type_id = ? and resource_id in (" + DSpaceObject.idList(resIds) + ")";
+        return hdl.createQuery(queryString)
+                  .bind(0, resType)
+                  .map(new ResourcePolicyMapper(hdl)).list().stream()
+                  .collect(Collectors.groupingBy(p -> p.resourceId));
+    }
+
     static ResourcePolicy findById(Handle hdl, String polId) {
         return hdl.createQuery(SELECT + " where policy_id = ?")
                    .bind(0, polId)
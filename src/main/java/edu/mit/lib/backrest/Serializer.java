@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.transform.stream.StreamSource;
+
+import com.codahale.metrics.json.MetricsModule;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Serializer renders response data as JSON or XML. Jackson mappers and writers
+ * are immutable once configured, and JAXB contexts are thread-safe, so these are
+ * built once (contexts lazily, one per bound class) and shared by all requests.
+ * Only JAXB marshallers and unmarshallers, which are not thread-safe and are cheap
+ * to create, are made per call. Output is compact unless pretty-printing is asked for.
+ *
+ * @author richardrodgers
+ */
+public class Serializer {
+
+    // callers close (and so flush) their streams, leaving buffered output uncommitted until then
+    private static final ObjectMapper mapper = new ObjectMapper()
+        .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+        .configure(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM, false)
+        .configure(SerializationFeature.FLUSH_AFTER_WRITE_VALUE, false);
+    private static final ObjectWriter compact = mapper.writer();
+    private static final ObjectWriter pretty = mapper.writer().with(SerializationFeature.INDENT_OUTPUT);
+    private static final ObjectMapper metricsMapper =
+        new ObjectMapper().registerModule(new MetricsModule(TimeUnit.SECONDS, TimeUnit.MILLISECONDS, true));
+    private static final Map<Class<?>, JAXBContext> contexts = new ConcurrentHashMap<>();
+
+    static void toJson(Object data, OutputStream out, boolean indent) throws IOException {
+        (indent ? pretty : compact).writeValue(out, data);
+    }
+
+    static void metricsToJson(Object metrics, OutputStream out, boolean indent) throws IOException {
+        ObjectWriter writer = metricsMapper.writer();
+        (indent ? writer.with(SerializationFeature.INDENT_OUTPUT) : writer).writeValue(out, metrics);
+    }
+
+    static JsonNode readJson(String json) throws IOException {
+        return mapper.readTree(json);
+    }
+
+    static void toXml(Object data, OutputStream out, boolean indent) throws JAXBException {
+        Marshaller marshaller = context(data.getClass()).createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, indent);
+        marshaller.marshal(data, new Unflushed(out));
+    }
+
+    static void toXmlFragment(Object data, OutputStream out, boolean indent) throws JAXBException {
+        // just the element - no XML declaration - for inclusion in a larger document
+        Marshaller marshaller = context(data.getClass()).createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, indent);
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+        marshaller.marshal(data, new Unflushed(out));
+    }
+
+    static <T> T fromXml(String xml, Class<T> type) throws JAXBException {
+        return type.cast(context(type).createUnmarshaller().unmarshal(new StreamSource(new StringReader(xml))));
+    }
+
+    /**
+     * Unflushed holds back flushes, which would commit a response prematurely.
+     */
+    private static class Unflushed extends FilterOutputStream {
+
+        Unflushed(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {}
+    }
+
+    private static JAXBContext context(Class<?> type) throws JAXBException {
+        JAXBContext context = contexts.get(type);
+        if (context == null) {
+            // a benign race - at worst a context is built twice
+            context = JAXBContext.newInstance(type);
+            contexts.put(type, context);
+        }
+        return context;
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.util.Locale;
+import java.util.StringJoiner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.jdbi.InstrumentedTimingCollector;
+import com.codahale.metrics.jdbi.strategies.StatementNameStrategy;
+import static com.codahale.metrics.MetricRegistry.*;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TimingCollector;
+
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+/**
+ * Timing breaks down where the time serving requests goes. Each route has its
+ * own timer, named by its pattern, holding every duration of the last five minutes
+ * (see WindowReservoir), so that tail percentiles (p99, p999) reflect current behavior. As a
+ * JDBI timing collector, it also accumulates each request thread's DB time, and
+ * optionally times statements grouped by verb and table. A request's DB, cache
+ * and serialization times are reported to the client in a 'Server-Timing' header.
+ *
+ * @author richardrodgers
+ */
+public class Timing implements TimingCollector {
+
+    private static final ThreadLocal<long[]> dbNanos = ThreadLocal.withInitial(() -> new long[1]);
+    // the verb and tables of a statement, e.g. 'select ... from item i, handle h where' -> select, 'item i, handle h'
+    private static final Pattern STATEMENT = Pattern.compile("^\\s*(\\w+).*?\\sfrom\\s+(.+?)(\\swhere\\s|\\sorder\\s|\\sgroup\\s|\\slimit\\s|$)",
+                                                             Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final TimingCollector statements;
+
+    Timing(MetricRegistry metrics, boolean byStatement) {
+        statements = byStatement ? new InstrumentedTimingCollector(metrics, new QueryNameStrategy()) : null;
+    }
+
+    @Override
+    public void collect(long elapsedTime, StatementContext ctx) {
+        dbNanos.get()[0] += elapsedTime;
+        if (statements != null) {
+            statements.collect(elapsedTime, ctx);
+        }
+    }
+
+    static Route timed(MetricRegistry metrics, String method, String path, Route route) {
+        // a windowed reservoir: memory does not grow with traffic, yet the tails are not sampled away
+        String name = name(Backrest.class, "route", method, path);
+        Timer registered = metrics.getTimers().get(name);
+        Timer timer = (registered != null) ? registered : metrics.register(name, new Timer(new WindowReservoir()));
+        return (req, res) -> {
+            req.attribute("route", path);
+            Timer.Context context = timer.time();
+            try {
+                return route.handle(req, res);
+            } finally {
+                context.stop();
+            }
+        };
+    }
+
+    static void start(Request req) {
+        // request threads are pooled, so DB time accrued elsewhere is discarded
+        dbNanos.get()[0] = 0L;
+        req.attribute("startNanos", System.nanoTime());
+    }
+
+    static void cacheTime(Request req, long nanos) {
+        req.attribute("cacheNanos", nanos);
+    }
+
+    static void report(Request req, Response res, long serializeNanos) {
+        // only possible until the response is committed
+        if (! res.raw().isCommitted()) {
+            StringJoiner timing = new StringJoiner(", ");
+            Long cacheNanos = req.attribute("cacheNanos");
+            if (cacheNanos != null) {
+                timing.add("cache;dur=" + millis(cacheNanos));
+            }
+            timing.add("db;dur=" + millis(dbNanos.get()[0]));
+            if (serializeNanos != -1L) {
+                timing.add("serialize;dur=" + millis(serializeNanos));
+            }
+            Long startNanos = req.attribute("startNanos");
+            if (startNanos != null) {
+                timing.add("total;dur=" + millis(System.nanoTime() - startNanos));
+            }
+            // replaces any earlier report
+            res.raw().setHeader("Server-Timing", timing.toString());
+        }
+    }
+
+    private static String millis(long nanos) {
+        // header syntax needs a decimal point, whatever the locale
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+    }
+
+    private static class QueryNameStrategy implements StatementNameStrategy {
+        @Override
+        public String getStatementName(StatementContext ctx) {
+            // e.g. 'sql.select.metadatavalue.metadatafieldregistry'
+            String sql = ctx.getRawSql();
+            Matcher matcher = STATEMENT.matcher(sql);
+            if (! matcher.find()) {
+                return name("sql", "raw");
+            }
+            StringJoiner tables = new StringJoiner(".");
+            for (String table : matcher.group(2).split(",|\\sjoin\\s")) {
+                String[] words = table.trim().split("\\s+");
+                // skip join types and aliases
+                if (words.length > 0 && ! words[0].isEmpty() && ! words[0].startsWith("(")) {
+                    tables.add(words[0].toLowerCase());
+                }
+            }
+            return name("sql", matcher.group(1).toLowerCase(), tables.toString());
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.skife.jdbi.v2.Handle;
+
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Validator holds what identifies a version of a DSpace object's data - a digest
+ * of that data, and when known, its last modification time - for HTTP conditional
+ * requests. Validators are obtained with a single cheap query (or none at all),
+ * so that a request for unchanged data can be answered before any of the work of
+ * building (expanding) and serializing the response is done. Since each object
+ * has many representations (media types, expansions, etc), the ETag combines the
+ * data digest with the request's representation choices.
+ *
+ * @author richardrodgers
+ */
+public class Validator {
+
+    final String digest;
+    final long lastModified;
+
+    Validator(String digest, long lastModified) {
+        this.digest = digest;
+        this.lastModified = lastModified;
+    }
+
+    static Validator ofTime(String kind, int id, Timestamp modified) {
+        long lastModified = (modified != null) ? modified.getTime() : -1L;
+        return new Validator(kind + ":" + id + ":" + lastModified, lastModified);
+    }
+
+    static Validator ofRow(ResultSet rs, Timestamp modified, int[]... links) throws SQLException {
+        // digest of every column value, and of the object's links in the hierarchy
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        putRow(hasher, rs);
+        for (int[] link : links) {
+            for (int id : link) {
+                hasher.putInt(id);
+            }
+            hasher.putChar('|');
+        }
+        if (modified != null) {
+            hasher.putLong(modified.getTime());
+        }
+        return new Validator(hasher.hash().toString(), -1L);
+    }
+
+    Validator and(Handle hdl, String queryString) {
+        // folds in the rows of related objects, which change without touching the object's own row -
+        // and as they carry no modification time, Last-Modified no longer vouches for the representation
+        Hasher hasher = Hashing.murmur3_128().newHasher().putString(digest, StandardCharsets.UTF_8);
+        hdl.createQuery(queryString)
+           .map((index, rs, ctx) -> {
+               putRow(hasher, rs);
+               return index;
+           })
+           .list();
+        return new Validator(hasher.hash().toString(), -1L);
+    }
+
+    Validator and(String data) {
+        // folds in derived data, such as item counts kept apart from the object's row
+        return new Validator(Hashing.murmur3_128().newHasher()
+                                    .putString(digest, StandardCharsets.UTF_8)
+                                    .putString(data, StandardCharsets.UTF_8)
+                                    .hash().toString(), -1L);
+    }
+
+    Validator andPage(List<Item> items) {
+        // a page of items is identified by the ids and modification times of its own rows, already
+        // read - so validating it costs no query, however large the list it is taken from
+        Hasher hasher = Hashing.murmur3_128().newHasher().putString(digest, StandardCharsets.UTF_8);
+        for (Item item : items) {
+            hasher.putInt(item.id).putString(String.valueOf(item.lastModified), StandardCharsets.UTF_8);
+        }
+        return new Validator(hasher.hash().toString(), -1L);
+    }
+
+    private static void putRow(Hasher hasher, ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        for (int col = 1; col <= meta.getColumnCount(); col++) {
+            hasher.putString(String.valueOf(rs.getObject(col)), StandardCharsets.UTF_8).putChar('|');
+        }
+    }
+
+    String etag(Request req) {
+        // the cache key identifies the representation, ignoring parameter order and defaults
+        return "\"" + Hashing.murmur3_128().newHasher()
+                             .putString(digest, StandardCharsets.UTF_8)
+                             .putString(Cache.cacheKey(req), StandardCharsets.UTF_8)
+                             .hash().toString() + "\"";
+    }
+
+    boolean notModified(Request req, Response res) {
+        // sets the validator headers, and reports whether client's copy is current
+        String etag = etag(req);
+        res.header("ETag", etag);
+        res.header("Vary", "Accept");
+        // retained for the response cache
+        req.attribute("etag", etag);
+        req.attribute("lastModified", lastModified);
+        if (lastModified != -1L) {
+            res.raw().setDateHeader("Last-Modified", lastModified);
+        }
+        return matches(req, etag, lastModified);
+    }
+
+    static boolean matches(Request req, String etag, long lastModified) {
+        String ifNoneMatch = req.headers("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when any tags are sent
+            for (String tag : Splitter.on(',').trimResults().omitEmptyStrings().split(ifNoneMatch)) {
+                if ("*".equals(tag) || tag.equals(etag) || tag.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified != -1L && req.headers("If-Modified-Since") != null) {
+            try {
+                return lastModified / 1000 <= req.raw().getDateHeader("If-Modified-Since") / 1000;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
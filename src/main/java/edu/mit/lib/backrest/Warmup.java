@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Warmup fills the response cache by requesting the most commonly used documents
+ * from the service itself: the top communities, and working down the hierarchy,
+ * every community and collection, with the first pages of each collection's items
+ * (following each page's link to the next, just as clients page).
+ * Requests go through the HTTP front door, so that they are cached exactly as
+ * client requests are, but are made by a few threads at a limited rate, so as not to
+ * swamp the database. Until the first warm-up ends (or gives up), the service
+ * reports itself as not ready. A flush of the cache starts another warm-up.
+ *
+ * @author richardrodgers
+ */
+public class Warmup {
+
+    // e.g. '</collections/1/items?after=2345>; rel="next"'
+    private static final Pattern NEXT_LINK = Pattern.compile("<([^>]+)>\\s*;\\s*rel=\"next\"");
+
+    private static String baseUrl;
+    private static int pages;
+    private static int threads;
+    private static double rate;
+    private static long timeout;
+
+    private static volatile boolean ready = true;
+    private static volatile Crawl crawl;
+
+    static void configure(String host, int port) {
+        baseUrl = "http://" + host + ":" + port;
+        pages = Integer.valueOf(System.getenv("BACKREST_WARMUP"));
+        String threadsVal = System.getenv("BACKREST_WARMUP_THREADS");
+        threads = (threadsVal != null) ? Integer.valueOf(threadsVal) : 4;
+        String rateVal = System.getenv("BACKREST_WARMUP_RATE");
+        rate = (rateVal != null) ? Double.valueOf(rateVal) : 20.0;
+        timeout = Backrest.millisFromEnv("BACKREST_WARMUP_TIMEOUT", "10m");
+        // service is not ready until the initial warm-up is done
+        ready = false;
+    }
+
+    static synchronized void run() {
+        if (baseUrl == null || (crawl != null && crawl.state.equals("running"))) return;
+        Crawl next = new Crawl();
+        crawl = next;
+        Thread waiter = new Thread(() -> next.await(), "backrest-warmup");
+        waiter.setDaemon(true);
+        waiter.start();
+    }
+
+    static boolean ready() {
+        return ready;
+    }
+
+    static void setReady(boolean isReady) {
+        ready = isReady;
+    }
+
+    static void report(Cache.Status status) {
+        Crawl current = crawl;
+        if (current != null) {
+            status.warmup = current.state;
+            status.warmed = current.warmed.get();
+        }
+    }
+
+    private static class Crawl {
+
+        private final ExecutorService workers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("backrest-warmup-%d").build());
+        private final RateLimiter limiter = RateLimiter.create(rate);
+        private final Set<String> visited = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        final AtomicInteger warmed = new AtomicInteger();
+        volatile String state = "running";
+
+        void await() {
+            long start = System.currentTimeMillis();
+            fetch("/communities/top-communities", this::communities);
+            try {
+                done.get(timeout, TimeUnit.MILLISECONDS);
+                state = "done";
+            } catch (TimeoutException e) {
+                state = "timed out";
+            } catch (Exception e) {
+                state = "failed";
+            } finally {
+                workers.shutdownNow();
+                ready = true;
+            }
+            Backrest.logger.info("Cache warm-up {}: {} documents in {} ms", state, warmed.get(),
+                                 System.currentTimeMillis() - start);
+        }
+
+        private void communities(JsonNode comms) {
+            for (JsonNode comm : comms) {
+                String path = "/communities/" + comm.get("id").asInt();
+                fetch(path, null);
+                fetch(path + "/collections", this::collections);
+                fetch(path + "/communities", this::communities);
+            }
+        }
+
+        private void collections(JsonNode colls) {
+            for (JsonNode coll : colls) {
+                String path = "/collections/" + coll.get("id").asInt();
+                fetch(path, null);
+                if (pages > 0) {
+                    items(path + "/items", 1);
+                }
+            }
+        }
+
+        private void items(String path, int page) {
+            // by the cursor each page links to, so that the pages cached are those clients will ask for
+            fetch(path, null, (page < pages) ? link -> {
+                Matcher next = NEXT_LINK.matcher(link);
+                if (next.find()) {
+                    items(next.group(1), page + 1);
+                }
+            } : null);
+        }
+
+        private void fetch(String path, Consumer<JsonNode> links) {
+            fetch(path, links, null);
+        }
+
+        private void fetch(String path, Consumer<JsonNode> links, Consumer<String> linkHeader) {
+            // communities may have many parents, so may be reached more than once
+            if (! visited.add(path)) return;
+            pending.incrementAndGet();
+            try {
+                workers.execute(() -> {
+                    try {
+                        limiter.acquire();
+                        HttpURLConnection conn = (HttpURLConnection)new URL(baseUrl + path).openConnection();
+                        conn.setRequestProperty("Accept", "application/json");
+                        try (InputStream in = conn.getInputStream()) {
+                            String link = conn.getHeaderField("Link");
+                            if (linkHeader != null && link != null) {
+                                linkHeader.accept(link);
+                            }
+                            if (links != null) {
+                                links.accept(Serializer.readJson(new String(ByteStreams.toByteArray(in), "UTF-8")));
+                            } else {
+                                ByteStreams.copy(in, ByteStreams.nullOutputStream());
+                            }
+                        }
+                        warmed.incrementAndGet();
+                    } catch (IOException e) {
+                        Backrest.logger.info("Cache warm-up failed for {}: {}", path, e.getMessage());
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            done.complete(null);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                // rejected - warm-up has timed out
+                pending.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * WindowReservoir holds every duration recorded in the last five minutes, as counts
+ * in log-scaled buckets (each 2% wider than the last, from 1 microsecond to an hour)
+ * kept in one-minute slices that are recycled as the window slides. Unlike a sample,
+ * no value is discarded, so the tail percentiles (p999) are resolved to within a
+ * bucket however heavy the traffic, and unlike a growing array, memory is fixed:
+ * a few thousand counters per timer. Min, max and mean are exact.
+ *
+ * @author richardrodgers
+ */
+class WindowReservoir implements Reservoir {
+
+    private static final long FLOOR = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final double GROWTH = 1.02;
+    // under the floor, then up to an hour, then over
+    private static final int BUCKETS = 2 + (int)Math.ceil(Math.log((double)TimeUnit.HOURS.toNanos(1) / FLOOR) / Math.log(GROWTH));
+    private static final int SLICES = 5;
+    private static final long SLICE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Clock clock;
+    private final Slice[] slices = new Slice[SLICES];
+
+    WindowReservoir() {
+        this(Clock.defaultClock());
+    }
+
+    WindowReservoir(Clock clock) {
+        this.clock = clock;
+        for (int i = 0; i < SLICES; i++) {
+            slices[i] = new Slice();
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        long epoch = epoch();
+        long count = 0L;
+        for (Slice slice : slices) {
+            if (slice.live(epoch)) count += slice.count;
+        }
+        return (int)Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized void update(long value) {
+        long epoch = epoch();
+        Slice slice = slices[(int)(epoch % SLICES)];
+        if (slice.epoch != epoch) {
+            slice.reset(epoch);
+        }
+        slice.add(value);
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        long epoch = epoch();
+        Slice window = new Slice();
+        for (Slice slice : slices) {
+            if (slice.live(epoch)) window.merge(slice);
+        }
+        return new BucketSnapshot(window);
+    }
+
+    private long epoch() {
+        return clock.getTick() / SLICE_NANOS;
+    }
+
+    private static int bucket(long value) {
+        // bucket 0 holds everything under the floor, the last everything over an hour
+        if (value < FLOOR) return 0;
+        int bucket = 1 + (int)(Math.log((double)value / FLOOR) / Math.log(GROWTH));
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long midpoint(int bucket) {
+        // geometric middle of the bucket's range
+        return (bucket == 0) ? 0L : Math.round(FLOOR * Math.pow(GROWTH, bucket - 0.5));
+    }
+
+    private static class Slice {
+        final long[] counts = new long[BUCKETS];
+        long epoch = -1L;
+        long count;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        double sum;
+        double sumSquares;
+
+        boolean live(long now) {
+            return epoch > now - SLICES && epoch <= now;
+        }
+
+        void reset(long epoch) {
+            Arrays.fill(counts, 0L);
+            this.epoch = epoch;
+            count = 0L;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+            sum = 0.0;
+            sumSquares = 0.0;
+        }
+
+        void add(long value) {
+            counts[bucket(value)]++;
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            sumSquares += (double)value * value;
+        }
+
+        void merge(Slice other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            sumSquares += other.sumSquares;
+        }
+    }
+
+    private static class BucketSnapshot extends Snapshot {
+        private final Slice window;
+
+        BucketSnapshot(Slice window) {
+            this.window = window;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            if (window.count == 0L) return 0.0;
+            long rank = Math.max(1L, (long)Math.ceil(quantile * window.count));
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += window.counts[i];
+                if (seen >= rank) {
+                    // the extremes are exact, so no estimate may fall outside them
+                    return Math.max(window.min, Math.min(window.max, midpoint(i)));
+                }
+            }
+            return window.max;
+        }
+
+        @Override
+        public long[] getValues() {
+            // one (bucket midpoint) value per recorded duration, in order
+            long[] values = new long[size()];
+            int pos = 0;
+            for (int i = 0; i < BUCKETS && pos < values.length; i++) {
+                long value = Math.max(window.min, Math.min(window.max, midpoint(i)));
+                for (long n = 0L; n < window.counts[i] && pos < values.length; n++) {
+                    values[pos++] = value;
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return (int)Math.min(window.count, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            return (window.count == 0L) ? 0L : window.max;
+        }
+
+        @Override
+        public double getMean() {
+            return (window.count == 0L) ? 0.0 : window.sum / window.count;
+        }
+
+        @Override
+        public long getMin() {
+            return (window.count == 0L) ? 0L : window.min;
+        }
+
+        @Override
+        public double getStdDev() {
+            if (window.count <= 1L) return 0.0;
+            double variance = (window.sumSquares - window.sum * window.sum / window.count) / (window.count - 1);
+            return Math.sqrt(Math.max(variance, 0.0));
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (long value : getValues()) {
+                    out.printf("%d%n", value);
+                }
+            }
+        }
+    }
+}
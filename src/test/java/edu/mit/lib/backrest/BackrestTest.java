@@ -7,7 +7,21 @@ package edu.mit.lib.backrest;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
@@ -27,9 +41,17 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 
 import org.h2.jdbcx.JdbcConnectionPool;
 
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.google.common.collect.ImmutableMap;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -149,6 +171,86 @@ public class BackrestTest {
         assertThat(baseClient.getLastReport(), checks());
     }
 
+    @Test
+    public void bulkLookupRequest() throws IOException {
+        CloseableHttpClient client = HttpClients.createDefault();
+        String url = TEST_SVC_URL + "/mama?qf=dc.identifier.uri&rf=dc.title";
+        HttpPost post = new HttpPost(url);
+        post.addHeader("Content-Type", "application/json");
+        post.setEntity(new StringEntity("[\"http://hdl.handle.net/123456789/3\", \"http://hdl.handle.net/123456789/5\"]"));
+        HttpResponse response = client.execute(post);
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        response.getEntity().writeTo(baos);
+        // results keyed by each value, matched or not
+        assertTrue(baos.toString().contains("\"http://hdl.handle.net/123456789/3\": [{\"dc.title\": \"A Ho-Hum Study\"}]"));
+        assertTrue(baos.toString().contains("\"http://hdl.handle.net/123456789/5\": []"));
+        // body must be an array of values
+        post.setEntity(new StringEntity("{\"value\":\"http://hdl.handle.net/123456789/3\"}"));
+        response = client.execute(post);
+        assertEquals(response.getStatusLine().getStatusCode(), 400);
+        // of at least one value
+        post.setEntity(new StringEntity("[]"));
+        response = client.execute(post);
+        assertEquals(response.getStatusLine().getStatusCode(), 400);
+    }
+
+    @Test
+    public void multiGetRequest() throws IOException {
+        CloseableHttpClient client = HttpClients.createDefault();
+        HttpGet get = new HttpGet(TEST_SVC_URL + "/items?ids=2,1000,1");
+        HttpResponse response = client.execute(get);
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        response.getEntity().writeTo(baos);
+        // in the order requested, without the unknown item
+        JsonNode items = new ObjectMapper().readTree(baos.toString());
+        assertEquals(2, items.size());
+        assertEquals(2, items.get(0).get("id").asInt());
+        assertEquals(1, items.get(1).get("id").asInt());
+        get = new HttpGet(TEST_SVC_URL + "/collections?ids=1,2");
+        get.addHeader("Accept", "application/xml");
+        response = client.execute(get);
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        baos = new ByteArrayOutputStream();
+        response.getEntity().writeTo(baos);
+        assertTrue(baos.toString().contains("<collections><collection>"));
+        // expansions are loaded for all the members together
+        response = client.execute(new HttpGet(TEST_SVC_URL + "/collections?ids=1,2&expand=all"));
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        baos = new ByteArrayOutputStream();
+        response.getEntity().writeTo(baos);
+        JsonNode colls = new ObjectMapper().readTree(baos.toString());
+        assertEquals(1, colls.get(0).get("items").get(0).get("id").asInt());
+        assertEquals("First Community", colls.get(0).get("parentCommunity").get("name").asText());
+        response = client.execute(new HttpGet(TEST_SVC_URL + "/bitstreams?ids=1,2&expand=all"));
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        baos = new ByteArrayOutputStream();
+        response.getEntity().writeTo(baos);
+        JsonNode bitstreams = new ObjectMapper().readTree(baos.toString());
+        assertEquals(2, bitstreams.size());
+        assertEquals("item", bitstreams.get(0).get("parent").get("type").asText());
+        assertEquals("community", bitstreams.get(1).get("parent").get("type").asText());
+        response = client.execute(new HttpGet(TEST_SVC_URL + "/bitstreams?ids=1,x"));
+        assertEquals(response.getStatusLine().getStatusCode(), 400);
+    }
+
+    @Test
+    public void exportRequest() throws IOException {
+        CloseableHttpClient client = HttpClients.createDefault();
+        HttpResponse response = client.execute(new HttpGet(TEST_SVC_URL + "/collections/1/items/export?expand=metadata"));
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        assertTrue(response.getEntity().getContentType().getValue().startsWith("application/x-ndjson"));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        response.getEntity().writeTo(baos);
+        // one item per line
+        String[] lines = baos.toString().split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].startsWith("{\"id\":1,") && lines[0].contains("A Ho-Hum Study"));
+        response = client.execute(new HttpGet(TEST_SVC_URL + "/collections/1000/items/export"));
+        assertEquals(response.getStatusLine().getStatusCode(), 404);
+    }
+
     @Test
     public void loginFailXml() throws IOException {
         CloseableHttpClient client = HttpClients.createDefault();
@@ -261,6 +363,403 @@ public class BackrestTest {
         assertTrue(baos.toString().contains("false"));
     }
 
+    @Test
+    public void cursorPaging() throws IOException {
+        CloseableHttpClient client = HttpClients.createDefault();
+        HttpResponse response = client.execute(new HttpGet(TEST_SVC_URL + "/items?limit=1&expand=metadata"));
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        String next = response.getFirstHeader("Link").getValue();
+        assertTrue(next.startsWith("</items?after=1&"));
+        // follow the cursor to the second (and last) item
+        response = client.execute(new HttpGet(TEST_SVC_URL + next.substring(1, next.indexOf(">"))));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        response.getEntity().writeTo(baos);
+        assertTrue(baos.toString().contains("A Very Important Study"));
+        assertTrue(! baos.toString().contains("A Ho-Hum Study"));
+    }
+
+    @Test
+    public void cachedPageLink() throws IOException {
+        // an in-process cache, for this test only
+        Cache.setCache("local", "1mb:1h", Backrest.metrics);
+        try {
+            long hits = Backrest.metrics.meter(MetricRegistry.name(Cache.class, "hits")).getCount();
+            CloseableHttpClient client = HttpClients.createDefault();
+            HttpResponse response = client.execute(new HttpGet(TEST_SVC_URL + "/items?limit=1"));
+            assertEquals(response.getStatusLine().getStatusCode(), 200);
+            String next = response.getFirstHeader("Link").getValue();
+            EntityUtils.consume(response.getEntity());
+            // the second copy comes from the cache, with the same link to the next page
+            response = client.execute(new HttpGet(TEST_SVC_URL + "/items?limit=1"));
+            assertEquals(response.getStatusLine().getStatusCode(), 200);
+            assertEquals(hits + 1, Backrest.metrics.meter(MetricRegistry.name(Cache.class, "hits")).getCount());
+            assertEquals(next, response.getFirstHeader("Link").getValue());
+            EntityUtils.consume(response.getEntity());
+        } finally {
+            Cache.shutdownCache();
+        }
+    }
+
+    @Test
+    public void cacheKeyEquivalence() {
+        // parameter order, repeats, defaults and unexpandable values do not change the document, nor its key
+        String json = "application/json";
+        String key = Cache.cacheKey("/collections/1/items", ImmutableMap.of("expand", "metadata,parentCollection")::get, json);
+        assertEquals(key, Cache.cacheKey("/collections/1/items",
+                     ImmutableMap.of("expand", "parentCollection,metadata,metadata,bogus", "limit", "100", "offset", "0")::get, json));
+        assertEquals(key, Cache.cacheKey("/collections/1/items",
+                     ImmutableMap.of("offset", "0", "pretty", "false", "expand", "metadata,logo,parentCollection")::get, json));
+        assertTrue(! key.equals(Cache.cacheKey("/collections/1/items", ImmutableMap.of("expand", "metadata")::get, json)));
+        // 'all' is resolved against what the route can expand
+        String all = Cache.cacheKey("/items/1", ImmutableMap.of("expand", "all")::get, json);
+        assertEquals(all, Cache.cacheKey("/items/1", ImmutableMap.of("expand", "bogus,all,metadata")::get, json));
+        assertTrue(! all.equals(Cache.cacheKey("/communities/1", ImmutableMap.of("expand", "all")::get, json)));
+        // item bitstreams, metadata and bitstream policies expand nothing
+        assertEquals(Cache.cacheKey("/items/1/bitstreams", ImmutableMap.<String, String>of()::get, json),
+                     Cache.cacheKey("/items/1/bitstreams", ImmutableMap.of("expand", "all")::get, json));
+        assertEquals(Cache.cacheKey("/collections/1", ImmutableMap.<String, String>of()::get, json),
+                     Cache.cacheKey("/collections/1", ImmutableMap.of("expand", "bogus")::get, json));
+    }
+
+    @Test
+    public void tagInvalidation() throws IOException {
+        // invalidating an item drops every document holding it, and nothing else
+        Cache.setCache("local", "1mb:1h", Backrest.metrics);
+        try {
+            CloseableHttpClient client = HttpClients.createDefault();
+            String[] pages = { "/items/1", "/collections/1/items", "/collections/2" };
+            for (String page : pages) {
+                EntityUtils.consume(client.execute(new HttpGet(TEST_SVC_URL + page)).getEntity());
+            }
+            long hits = Backrest.metrics.meter(MetricRegistry.name(Cache.class, "hits")).getCount();
+            long misses = Backrest.metrics.meter(MetricRegistry.name(Cache.class, "misses")).getCount();
+            // all cached
+            for (String page : pages) {
+                EntityUtils.consume(client.execute(new HttpGet(TEST_SVC_URL + page)).getEntity());
+            }
+            assertEquals(hits + 3, Backrest.metrics.meter(MetricRegistry.name(Cache.class, "hits")).getCount());
+            hits += 3;
+            Cache.invalidate("item", "1");
+            for (String page : pages) {
+                EntityUtils.consume(client.execute(new HttpGet(TEST_SVC_URL + page)).getEntity());
+            }
+            assertEquals(misses + 2, Backrest.metrics.meter(MetricRegistry.name(Cache.class, "misses")).getCount());
+            assertEquals(hits + 1, Backrest.metrics.meter(MetricRegistry.name(Cache.class, "hits")).getCount());
+        } finally {
+            Cache.shutdownCache();
+        }
+    }
+
+    @Test
+    public void coalescedMisses() throws Exception {
+        // concurrent misses on one document - only one request should build it
+        Cache.setCache("local", "1000:1h", Backrest.metrics);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            long hits = Backrest.metrics.meter(MetricRegistry.name(Cache.class, "hits")).getCount();
+            long misses = Backrest.metrics.meter(MetricRegistry.name(Cache.class, "misses")).getCount();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<String>> bodies = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                bodies.add(pool.submit(() -> {
+                    start.await();
+                    CloseableHttpClient client = HttpClients.createDefault();
+                    return EntityUtils.toString(client.execute(new HttpGet(TEST_SVC_URL + "/collections/1?expand=license")).getEntity());
+                }));
+            }
+            start.countDown();
+            for (Future<String> body : bodies) {
+                assertTrue(body.get().contains("Everyone can read"));
+            }
+            assertEquals(misses + 1, Backrest.metrics.meter(MetricRegistry.name(Cache.class, "misses")).getCount());
+            assertEquals(hits + 7, Backrest.metrics.meter(MetricRegistry.name(Cache.class, "hits")).getCount());
+        } finally {
+            pool.shutdown();
+            Cache.shutdownCache();
+        }
+    }
+
+    @Test
+    public void rangeRetrieve() throws IOException {
+        // lay out a file asset store holding bitstream 1 (internal id 234234)
+        Path assets = Files.createTempDirectory("assets");
+        Path asset = Files.createDirectories(assets.resolve("23/42/34")).resolve("234234");
+        Files.write(asset, "0123456789".getBytes(StandardCharsets.UTF_8));
+        Backrest.assetLocator = assets.toUri().toString();
+        try {
+            CloseableHttpClient client = HttpClients.createDefault();
+            HttpGet get = new HttpGet(TEST_SVC_URL + "/bitstreams/1/retrieve");
+            get.setHeader("Range", "bytes=2-5");
+            HttpResponse response = client.execute(get);
+            assertEquals(response.getStatusLine().getStatusCode(), 206);
+            assertEquals(response.getFirstHeader("Content-Range").getValue(), "bytes 2-5/10");
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            response.getEntity().writeTo(baos);
+            assertEquals(baos.toString(), "2345");
+            // range valid only if the entity is unchanged
+            get.setHeader("If-Range", "\"2343424\"");
+            response = client.execute(get);
+            assertEquals(response.getStatusLine().getStatusCode(), 206);
+            response.getEntity().writeTo(new ByteArrayOutputStream());
+            get.setHeader("If-Range", "\"changed\"");
+            response = client.execute(get);
+            assertEquals(response.getStatusLine().getStatusCode(), 200);
+            baos = new ByteArrayOutputStream();
+            response.getEntity().writeTo(baos);
+            assertEquals(baos.toString(), "0123456789");
+            // range beyond end of file
+            get.removeHeaders("If-Range");
+            get.setHeader("Range", "bytes=10-");
+            response = client.execute(get);
+            assertEquals(response.getStatusLine().getStatusCode(), 416);
+            assertEquals(response.getFirstHeader("Content-Range").getValue(), "bytes */10");
+        } finally {
+            Backrest.assetLocator = "";
+        }
+    }
+
+    @Test
+    public void conditionalGet() throws IOException {
+        CloseableHttpClient client = HttpClients.createDefault();
+        HttpGet get = new HttpGet(TEST_SVC_URL + "/items/1");
+        HttpResponse response = client.execute(get);
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        response.getEntity().writeTo(new ByteArrayOutputStream());
+        String etag = response.getFirstHeader("ETag").getValue();
+        String lastModified = response.getFirstHeader("Last-Modified").getValue();
+        // unchanged item
+        get.setHeader("If-None-Match", etag);
+        response = client.execute(get);
+        assertEquals(response.getStatusLine().getStatusCode(), 304);
+        get.removeHeaders("If-None-Match");
+        get.setHeader("If-Modified-Since", lastModified);
+        response = client.execute(get);
+        assertEquals(response.getStatusLine().getStatusCode(), 304);
+        // each representation has its own tag
+        get.removeHeaders("If-Modified-Since");
+        get.setHeader("Accept", "application/xml");
+        get.setHeader("If-None-Match", etag);
+        response = client.execute(get);
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        response.getEntity().writeTo(new ByteArrayOutputStream());
+        assertTrue(! etag.equals(response.getFirstHeader("ETag").getValue()));
+        // collections are tagged, but have no modification time
+        get = new HttpGet(TEST_SVC_URL + "/collections/1");
+        response = client.execute(get);
+        response.getEntity().writeTo(new ByteArrayOutputStream());
+        assertTrue(response.getFirstHeader("Last-Modified") == null);
+        get.setHeader("If-None-Match", response.getFirstHeader("ETag").getValue());
+        response = client.execute(get);
+        assertEquals(response.getStatusLine().getStatusCode(), 304);
+        // item pages are tagged by their own rows
+        get = new HttpGet(TEST_SVC_URL + "/collections/1/items");
+        response = client.execute(get);
+        EntityUtils.consume(response.getEntity());
+        String pageTag = response.getFirstHeader("ETag").getValue();
+        get.setHeader("If-None-Match", pageTag);
+        response = client.execute(get);
+        assertEquals(response.getStatusLine().getStatusCode(), 304);
+        response = client.execute(new HttpGet(TEST_SVC_URL + "/collections/1/items?after=1"));
+        EntityUtils.consume(response.getEntity());
+        assertTrue(! pageTag.equals(response.getFirstHeader("ETag").getValue()));
+    }
+
+    @Test
+    public void conditionalGetRelations() throws IOException {
+        // related rows change without touching the item or community row
+        CloseableHttpClient client = HttpClients.createDefault();
+        HttpGet itemGet = new HttpGet(TEST_SVC_URL + "/items/1?expand=parentCollection");
+        HttpResponse response = client.execute(itemGet);
+        EntityUtils.consume(response.getEntity());
+        String itemTag = response.getFirstHeader("ETag").getValue();
+        assertTrue(response.getFirstHeader("Last-Modified") == null);
+        HttpGet collsGet = new HttpGet(TEST_SVC_URL + "/communities/1/collections");
+        response = client.execute(collsGet);
+        EntityUtils.consume(response.getEntity());
+        String collsTag = response.getFirstHeader("ETag").getValue();
+        try (Handle hdl = database.open()) {
+            hdl.execute("update collection set side_bar_text = 'Changed' where collection_id = 1");
+        }
+        try {
+            itemGet.setHeader("If-None-Match", itemTag);
+            response = client.execute(itemGet);
+            EntityUtils.consume(response.getEntity());
+            assertEquals(response.getStatusLine().getStatusCode(), 200);
+            collsGet.setHeader("If-None-Match", collsTag);
+            response = client.execute(collsGet);
+            EntityUtils.consume(response.getEntity());
+            assertEquals(response.getStatusLine().getStatusCode(), 200);
+        } finally {
+            try (Handle hdl = database.open()) {
+                hdl.execute("update collection set side_bar_text = null where collection_id = 1");
+            }
+        }
+    }
+
+    @Test
+    public void hierarchyNodeRefresh() throws IOException {
+        // communities are listed from the hierarchy index, which re-reads just the communities named
+        CloseableHttpClient client = HttpClients.createDefault();
+        try (Handle hdl = database.open()) {
+            hdl.execute("update community set name = 'Renamed Community' where community_id = 1");
+            Hierarchy.refresh(hdl, Collections.singleton(1));
+        }
+        try {
+            HttpResponse response = client.execute(new HttpGet(TEST_SVC_URL + "/communities"));
+            assertTrue(EntityUtils.toString(response.getEntity()).contains("Renamed Community"));
+        } finally {
+            try (Handle hdl = database.open()) {
+                hdl.execute("update community set name = 'First Community' where community_id = 1");
+                Hierarchy.refresh(hdl, Collections.singleton(1));
+            }
+        }
+    }
+
+    @Test
+    public void changePolling() {
+        // the poller reports what changed since its last look: edited, mapped and deleted items
+        List<Set<Integer>> changed = new ArrayList<>();
+        ChangePoller.Listener listener = (items, collections, communities) -> {
+            changed.clear();
+            changed.addAll(Arrays.asList(items, collections, communities));
+        };
+        ChangePoller.mark(database);
+        ChangePoller.addListener(listener);
+        try {
+            try (Handle hdl = database.open()) {
+                hdl.execute("update item set last_modified = dateadd('second', 1, last_modified) where item_id = 1");
+            }
+            ChangePoller.poll(database);
+            assertEquals(Arrays.asList(set(1), set(1), set(1)), changed);
+            // a new item, mapped to a collection no community holds
+            try (Handle hdl = database.open()) {
+                hdl.execute("insert into item (item_id, in_archive, withdrawn, last_modified, owning_collection) " +
+                            "values(3, 1, 0, dateadd('second', 1, (select max(last_modified) from item)), 2)");
+                hdl.execute("insert into collection2item (id, collection_id, item_id) values(2, 2, 3)");
+            }
+            ChangePoller.poll(database);
+            assertEquals(Arrays.asList(set(3), set(2), set()), changed);
+            // mapped into another collection, then out again
+            try (Handle hdl = database.open()) {
+                hdl.execute("insert into collection2item (id, collection_id, item_id) values(3, 1, 3)");
+            }
+            ChangePoller.poll(database);
+            assertEquals(Arrays.asList(set(3), set(1), set(1)), changed);
+            try (Handle hdl = database.open()) {
+                hdl.execute("delete from collection2item where id = 3");
+            }
+            ChangePoller.poll(database);
+            assertEquals(Arrays.asList(set(), set(1), set(1)), changed);
+            // deleted outright
+            try (Handle hdl = database.open()) {
+                hdl.execute("delete from collection2item where id = 2");
+                hdl.execute("delete from item where item_id = 3");
+            }
+            ChangePoller.poll(database);
+            assertEquals(Arrays.asList(set(3), set(2), set()), changed);
+        } finally {
+            ChangePoller.removeListener(listener);
+            try (Handle hdl = database.open()) {
+                hdl.execute("delete from collection2item where id in (2, 3)");
+                hdl.execute("delete from item where item_id = 3");
+                hdl.execute("update item set last_modified = dateadd('second', -1, last_modified) where item_id = 1");
+            }
+        }
+    }
+
+    private static Set<Integer> set(Integer... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+    @Test
+    public void metadataIndex() throws IOException {
+        MetadataIndex.load(database, "dc.identifier.uri");
+        try {
+            int uriField = FieldRegistry.fieldId("dc.identifier.uri");
+            // values are matched exactly, as the DB matches them; unindexed fields are left to the DB
+            assertEquals(1, MetadataIndex.lookup(uriField, "http://hdl.handle.net/123456789/3").length);
+            assertEquals(0, MetadataIndex.lookup(uriField, " HTTP://hdl.handle.net/123456789/3").length);
+            assertEquals(0, MetadataIndex.lookup(uriField, "http://hdl.handle.net/123456789/4").length);
+            assertTrue(MetadataIndex.lookup(FieldRegistry.fieldId("dc.title"), "A Ho-Hum Study") == null);
+            CloseableHttpClient client = HttpClients.createDefault();
+            HttpResponse response = client.execute(new HttpGet(TEST_SVC_URL + "/mama?qf=dc.identifier.uri&qv=http://hdl.handle.net/123456789/3"));
+            assertEquals(response.getStatusLine().getStatusCode(), 200);
+            EntityUtils.consume(response.getEntity());
+            // an edited item is re-indexed
+            try (Handle hdl = database.open()) {
+                hdl.execute("update metadatavalue set text_value = 'http://hdl.handle.net/123456789/4' where metadata_value_id = 1");
+            }
+            try {
+                MetadataIndex.reindex(database, Collections.singleton(1));
+                assertEquals(0, MetadataIndex.lookup(uriField, "http://hdl.handle.net/123456789/3").length);
+                assertEquals(1, MetadataIndex.lookup(uriField, "http://hdl.handle.net/123456789/4")[0]);
+            } finally {
+                try (Handle hdl = database.open()) {
+                    hdl.execute("update metadatavalue set text_value = 'http://hdl.handle.net/123456789/3' where metadata_value_id = 1");
+                }
+            }
+        } finally {
+            MetadataIndex.clear();
+        }
+    }
+
+    @Test
+    public void titleFollowsEdits() throws IOException {
+        // cached titles are re-read once their item is modified, without any invalidation
+        CloseableHttpClient client = HttpClients.createDefault();
+        HttpResponse response = client.execute(new HttpGet(TEST_SVC_URL + "/items/2"));
+        assertTrue(EntityUtils.toString(response.getEntity()).contains("A Very Important Study"));
+        try (Handle hdl = database.open()) {
+            hdl.execute("update metadatavalue set text_value = 'A Retitled Study' where metadata_value_id = 2");
+            hdl.execute("update item set last_modified = dateadd('second', 1, last_modified) where item_id = 2");
+        }
+        try {
+            response = client.execute(new HttpGet(TEST_SVC_URL + "/items/2"));
+            assertTrue(EntityUtils.toString(response.getEntity()).contains("A Retitled Study"));
+        } finally {
+            try (Handle hdl = database.open()) {
+                hdl.execute("update metadatavalue set text_value = 'A Very Important Study' where metadata_value_id = 2");
+                hdl.execute("update item set last_modified = dateadd('second', -1, last_modified) where item_id = 2");
+            }
+        }
+    }
+
+    @Test
+    public void poolMetrics() throws IOException {
+        CloseableHttpClient client = HttpClients.createDefault();
+        HttpResponse response = client.execute(new HttpGet(TEST_SVC_URL + "/metrics"));
+        assertEquals(response.getStatusLine().getStatusCode(), 200);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        response.getEntity().writeTo(baos);
+        assertTrue(baos.toString().contains("backrest-db.pool.ActiveConnections"));
+        assertTrue(baos.toString().contains("backrest-db.pool.Wait"));
+    }
+
+    @Test
+    public void windowReservoir() {
+        long[] tick = { 0L };
+        WindowReservoir reservoir = new WindowReservoir(new Clock() {
+            @Override
+            public long getTick() { return tick[0]; }
+        });
+        // 1 to 10000 ms: every duration is kept, so even p999 is resolved to within a bucket
+        for (long ms = 1; ms <= 10000; ms++) {
+            reservoir.update(TimeUnit.MILLISECONDS.toNanos(ms));
+        }
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertEquals(10000, snapshot.size());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10000), snapshot.getMax());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), snapshot.getMin());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(9990), snapshot.get999thPercentile(), TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5000), snapshot.getMedian(), TimeUnit.MILLISECONDS.toNanos(100));
+        // durations age out of the five minute window
+        tick[0] += TimeUnit.MINUTES.toNanos(3);
+        reservoir.update(TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(10001, reservoir.size());
+        tick[0] += TimeUnit.MINUTES.toNanos(3);
+        assertEquals(1, reservoir.getSnapshot().size());
+    }
+
     @Test
     public void jsonUsageSuite() throws IOException {
         mimeType = "application/json";
@@ -279,6 +778,13 @@ public class BackrestTest {
 
         // URLs must collectively trigger full set of API behaviors as described by spec
         send(client, TEST_SVC_URL + "/ping");
+        // still warming up - should return 503 response code
+        Warmup.setReady(false);
+        try {
+            send(client, TEST_SVC_URL + "/ping");
+        } finally {
+            Warmup.setReady(true);
+        }
         // missing required query parameter 'qf' - should return 400 response code
         send(client, TEST_SVC_URL + "/mama?qv=http://hdl.handle.net/123456789/3");
         // required query parameter 'qf' lacking value - should return 400 response code
@@ -327,13 +833,17 @@ public class BackrestTest {
         send(client, TEST_SVC_URL + "/collections/1000");
         // items in collection that exists
         send(client, TEST_SVC_URL + "/collections/1/items");
+        // items in collection that exists - cursor paging
+        send(client, TEST_SVC_URL + "/collections/1/items?after=0&limit=1");
         // items in collection that doesn't exist
         send(client, TEST_SVC_URL + "/collections/1000/items");
         // items calls
         send(client, TEST_SVC_URL + "/items");
+        send(client, TEST_SVC_URL + "/items?after=1");
         // items single one - exists
         send(client, TEST_SVC_URL + "/items/1");
         send(client, TEST_SVC_URL + "/items/1?expand=parentCollection");
+        send(client, TEST_SVC_URL + "/items/1?pretty=true");
         send(client, TEST_SVC_URL + "/items/1?expand=parentCollectionList");
         send(client, TEST_SVC_URL + "/items/1?expand=parentCommunityList");
         send(client, TEST_SVC_URL + "/items/1?expand=metadata");
@@ -351,6 +861,7 @@ public class BackrestTest {
         send(client, TEST_SVC_URL + "/items/1000/metadata");
         // bitstream calls
         send(client, TEST_SVC_URL + "/bitstreams");
+        send(client, TEST_SVC_URL + "/bitstreams?after=0&limit=1");
         // bitstreams single one - exists, and expands
         send(client, TEST_SVC_URL + "/bitstreams/1");
         send(client, TEST_SVC_URL + "/bitstreams/1?expand=parent");
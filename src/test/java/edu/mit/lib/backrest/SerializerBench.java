@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2016 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.backrest;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * SerializerBench times the rendering of a page of items (20, each with 10
+ * metadata values, as with ?expand=metadata) by Serializer, compact and pretty,
+ * against the per-request mapper and context it replaced. It is not a test, and
+ * is not run by the build; run it with:
+ *
+ *    gradle serializerBench
+ *
+ * Each case is warmed up, then timed in rounds taken in turn with the other cases,
+ * so that JIT and GC effects are spread evenly; the median round is reported.
+ *
+ * @author richardrodgers
+ */
+public class SerializerBench {
+
+    private static final int ITEMS = 20;
+    private static final int VALUES = 10;
+    private static final int WARMUP_MS = 2000;
+    private static final int ROUNDS = 15;
+    private static final int ROUND_MS = 200;
+
+    interface Case {
+        void run(ByteArrayOutputStream out) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Item> page = page();
+        Item.XList xpage = new Item.XList(page);
+        Map<String, Case> cases = new LinkedHashMap<>();
+        cases.put("json: new ObjectMapper, pretty", out -> new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(out, page));
+        cases.put("json: shared, compact", out -> Serializer.toJson(page, out, false));
+        cases.put("json: shared, pretty", out -> Serializer.toJson(page, out, true));
+        cases.put("xml:  new JAXBContext, pretty", out -> {
+            Marshaller marshaller = JAXBContext.newInstance(Item.XList.class).createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            marshaller.marshal(xpage, out);
+        });
+        cases.put("xml:  shared, compact", out -> Serializer.toXml(xpage, out, false));
+        cases.put("xml:  shared, pretty", out -> Serializer.toXml(xpage, out, true));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        for (Map.Entry<String, Case> c : cases.entrySet()) {
+            out.reset();
+            c.getValue().run(out);
+            sizes.put(c.getKey(), out.size());
+            time(c.getValue(), out, WARMUP_MS);
+        }
+        Map<String, double[]> rounds = new LinkedHashMap<>();
+        cases.keySet().forEach(name -> rounds.put(name, new double[ROUNDS]));
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Map.Entry<String, Case> c : cases.entrySet()) {
+                rounds.get(c.getKey())[round] = time(c.getValue(), out, ROUND_MS);
+            }
+        }
+        System.out.printf("%d items of %d metadata values, median of %d rounds (min - max)%n", ITEMS, VALUES, ROUNDS);
+        for (String name : cases.keySet()) {
+            double[] us = rounds.get(name);
+            Arrays.sort(us);
+            System.out.printf("  %-32s %9.1f us/op  (%.1f - %.1f)  %6d bytes%n",
+                              name, us[ROUNDS / 2], us[0], us[ROUNDS - 1], sizes.get(name));
+        }
+    }
+
+    private static double time(Case c, ByteArrayOutputStream out, long millis) throws Exception {
+        // microseconds per operation, over as many as fit in the time given
+        long ops = 0L;
+        long start = System.nanoTime();
+        long end = start + millis * 1000000L;
+        long now;
+        do {
+            out.reset();
+            c.run(out);
+            ops++;
+        } while ((now = System.nanoTime()) < end);
+        return (now - start) / 1000.0 / ops;
+    }
+
+    private static List<Item> page() {
+        List<Item> items = new ArrayList<>();
+        for (int i = 1; i <= ITEMS; i++) {
+            List<MetadataValue> metadata = new ArrayList<>();
+            metadata.add(new MetadataValue(i, "dc.title", "A Study of Item " + i, "en_US"));
+            metadata.add(new MetadataValue(i, "dc.identifier.uri", "http://hdl.handle.net/1721.1/" + (10000 + i), null));
+            for (int v = 2; v < VALUES; v++) {
+                metadata.add(new MetadataValue(i, "dc.contributor.author", "Author " + v + ", An <" + i + ">", "en_US"));
+            }
+            items.add(new Item(i, "A Study of Item " + i, "1721.1/" + (10000 + i), "true", "false", "2016-05-04 12:34:56.789",
+                               null, null, null, metadata, null, new ArrayList<>(Arrays.asList("parentCollection", "bitstreams", "all"))));
+        }
+        return items;
+    }
+}